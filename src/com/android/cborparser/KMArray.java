@@ -39,11 +39,12 @@ public class KMArray extends KMType {
 
   private KMArray() {}
 
-  private static KMArray proto(short ptr) {
+  private static KMArray proto(byte[] buffer, short ptr) {
     if (prototype == null) {
       prototype = new KMArray();
     }
     KMType.instanceTable[KM_ARRAY_OFFSET] = ptr;
+    KMType.bufferTable[KM_ARRAY_OFFSET] = buffer;
     return prototype;
   }
 
@@ -99,13 +100,17 @@ public class KMArray extends KMType {
   // }
 
   public static KMArray cast(short ptr) {
-    byte[] heap = repository.getHeap();
-    byte majorType = (byte) (heap[ptr] & 0x00E0);
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMArray
+  public static KMArray cast(byte[] buffer, short ptr) {
+    byte majorType = (byte) (buffer[ptr] & 0x00E0);
 
     if (majorType != ARRAY_MAJOR_TYPE) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
-    return proto(ptr);
+    return proto(buffer, ptr);
   }
 
   public void pushBack(short objPtr) {
@@ -265,7 +270,7 @@ public class KMArray extends KMType {
   }
 
   public byte[] getBuffer() {
-    return heap;
+    return (byte[]) KMType.bufferTable[KM_ARRAY_OFFSET];
   }
 
   public void deleteLastEntry() {
@@ -34,11 +34,12 @@ public class KMByteBlob extends KMType {
 
   protected KMByteBlob() {}
 
-  private static KMByteBlob proto(short ptr) {
+  private static KMByteBlob proto(byte[] buffer, short ptr) {
     if (prototype == null) {
       prototype = new KMByteBlob();
     }
     KMType.instanceTable[KM_BYTE_BLOB_OFFSET] = ptr;
+    KMType.bufferTable[KM_BYTE_BLOB_OFFSET] = buffer;
     return prototype;
   }
 
@@ -86,13 +87,18 @@ public class KMByteBlob extends KMType {
 
   // cast the ptr to KMByteBlob
   public static KMByteBlob cast(short ptr) {
-    byte[] heap = repository.getHeap();
-    short majorType = (short) (heap[ptr] & 0x00E0);
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMByteBlob
+  public static KMByteBlob cast(byte[] buffer, short ptr) {
+    short majorType = (short) (buffer[ptr] & 0x00E0);
 
-    if (majorType != MAJOR_TYPE_BYTE_BLOB) {
+    // The content of a chunked string is not contiguous, so it is viewed only once normalized.
+    if (majorType != MAJOR_TYPE_BYTE_BLOB || isIndefinite(buffer, ptr)) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
-    return proto(ptr);
+    return proto(buffer, ptr);
   }
 
   // Add the byte
@@ -101,7 +107,7 @@ public class KMByteBlob extends KMType {
     if (index >= len) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    heap[(short) (getStartOff() + index)] = val;
+    getBuffer()[(short) (getStartOff() + index)] = val;
   }
 
   // Get the byte
@@ -110,28 +116,28 @@ public class KMByteBlob extends KMType {
     if (index >= len) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    return heap[(short) (getStartOff() + index)];
+    return getBuffer()[(short) (getStartOff() + index)];
   }
 
   // Get the start of blob
   public short getStartOff() {
-    //return Util.getShort(heap, (short) (getBaseOffset() + TLV_HEADER_SIZE));
+    //return Util.getShort(getBuffer(), (short) (getBaseOffset() + TLV_HEADER_SIZE));
     return (short) (getBaseOffset() + headerLength());
   }
 
   public void setStartOff(short offset) {
-    Util.setShort(heap, (short) (getBaseOffset() + TLV_HEADER_SIZE), offset);
+    Util.setShort(getBuffer(), (short) (getBaseOffset() + TLV_HEADER_SIZE), offset);
   }
 
   // Get the length of the blob
   public short length() {
     return length(getBaseOffset());
-    //return Util.getShort(heap, (short) (getBaseOffset() + 1));
-    // byte addInfo = (byte) (heap[getBaseOffset()] & 0x1F);
+    //return Util.getShort(getBuffer(), (short) (getBaseOffset() + 1));
+    // byte addInfo = (byte) (getBuffer()[getBaseOffset()] & 0x1F);
     // if (addInfo == 25) {
-    //   return Util.getShort(heap, (short) (getBaseOffset()+1));
+    //   return Util.getShort(getBuffer(), (short) (getBaseOffset()+1));
     // } else if (addInfo == 24) {
-    //   return (short) (heap[(short) (getBaseOffset()+1)] & 0x00FF);
+    //   return (short) (getBuffer()[(short) (getBaseOffset()+1)] & 0x00FF);
     // } else if (addInfo <= 23) {
     //   return addInfo;
     // } else {
@@ -142,8 +148,8 @@ public class KMByteBlob extends KMType {
 
   public short headerLength() {
     return headerLength(getBaseOffset());
-    //return Util.getShort(heap, (short) (getBaseOffset() + 1));
-    // byte addInfo = (byte) (heap[getBaseOffset()] & 0x1F);
+    //return Util.getShort(getBuffer(), (short) (getBaseOffset() + 1));
+    // byte addInfo = (byte) (getBuffer()[getBaseOffset()] & 0x1F);
     // if (addInfo  == 27) {
     //   return (short) 9;
     // } else if (addInfo == 26) {
@@ -162,16 +168,16 @@ public class KMByteBlob extends KMType {
 
   // Get the buffer pointer in which blob is contained.
   public byte[] getBuffer() {
-    return heap;
+    return (byte[]) KMType.bufferTable[KM_BYTE_BLOB_OFFSET];
   }
 
   public void getValue(byte[] destBuf, short destStart, short destLength) {
-    Util.arrayCopyNonAtomic(heap, getStartOff(), destBuf, destStart, destLength);
+    Util.arrayCopyNonAtomic(getBuffer(), getStartOff(), destBuf, destStart, destLength);
   }
 
   public short getValues(byte[] destBuf, short destStart) {
     short destLength = length();
-    Util.arrayCopyNonAtomic(heap, getStartOff(), destBuf, destStart, destLength);
+    Util.arrayCopyNonAtomic(getBuffer(), getStartOff(), destBuf, destStart, destLength);
     return destLength;
   }
 
@@ -179,7 +185,7 @@ public class KMByteBlob extends KMType {
     if (length() < srcLength) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    Util.arrayCopyNonAtomic(srcBuf, srcStart, heap, getStartOff(), srcLength);
+    Util.arrayCopyNonAtomic(srcBuf, srcStart, getBuffer(), getStartOff(), srcLength);
     setLength(srcLength);
   }
 
@@ -192,6 +198,6 @@ public class KMByteBlob extends KMType {
   }
 
   public void setLength(short len) {
-    Util.setShort(heap, (short) (getBaseOffset() + 1), len);
+    Util.setShort(getBuffer(), (short) (getBaseOffset() + 1), len);
   }
 }
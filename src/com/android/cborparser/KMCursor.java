@@ -0,0 +1,159 @@
+/*
+ * Copyright(C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cborparser;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/**
+ * KMCursor iterates sequentially over the elements of a KMArray or the entries of a KMMap. Unlike
+ * indexed access, which walks from the header of the container for every element, a cursor keeps
+ * the offset of the current element in transient memory and moves to the following element with
+ * a single next() step. So a full pass over a container is linear. Map cursors expose the key and
+ * the value of the current entry together. Cursors do not allocate any memory; a fixed number of
+ * cursors can be open at the same time and each one is identified by its slot.
+ * struct{short position; short value; short remaining; short state}
+ */
+public class KMCursor extends KMType {
+
+  public static final byte MAX_CURSORS = 4;
+  private static final byte CURSOR_SIZE = 4;
+  private static final byte POSITION = 0;
+  private static final byte VALUE = 1;
+  private static final byte REMAINING = 2;
+  private static final byte STATE = 3;
+  // Cursor states
+  private static final byte FREE = 0;
+  private static final byte ARRAY_CURSOR = 1;
+  private static final byte MAP_CURSOR = 2;
+  private static KMCursor prototype;
+  private static short[] cursors;
+
+  private KMCursor() {}
+
+  public static void initialize() {
+    if (prototype == null) {
+      prototype = new KMCursor();
+    }
+    cursors =
+        JCSystem.makeTransientShortArray(
+            (short) (MAX_CURSORS * CURSOR_SIZE), JCSystem.CLEAR_ON_RESET);
+  }
+
+  // Opens a cursor positioned at the first element of the array or the first entry of the map.
+  public static short open(short ptr) {
+    byte state;
+    switch (getMajorType(ptr)) {
+      case MAJOR_TYPE_ARRAY:
+        state = ARRAY_CURSOR;
+        break;
+      case MAJOR_TYPE_MAP:
+        state = MAP_CURSOR;
+        break;
+      default:
+        ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        return KMType.INVALID_VALUE;
+    }
+    short cursor = 0;
+    while (cursor < MAX_CURSORS) {
+      if (cursors[(short) (cursor * CURSOR_SIZE + STATE)] == FREE) {
+        break;
+      }
+      cursor++;
+    }
+    if (cursor == MAX_CURSORS) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    short base = (short) (cursor * CURSOR_SIZE);
+    cursors[(short) (base + STATE)] = state;
+    cursors[(short) (base + POSITION)] = (short) (ptr + prototype.headerLength(ptr));
+    cursors[(short) (base + REMAINING)] = prototype.length(ptr);
+    locateValue(base);
+    return cursor;
+  }
+
+  // Returns the offset which follows the item at the given offset.
+  public static short end(short ptr) {
+    return prototype.next(ptr);
+  }
+
+  public static void close(short cursor) {
+    cursors[(short) (cursor * CURSOR_SIZE + STATE)] = FREE;
+  }
+
+  // Closes all the cursors, e.g. when the processing of a command is aborted.
+  public static void closeAll() {
+    if (cursors == null) {
+      return;
+    }
+    short cursor = 0;
+    while (cursor < MAX_CURSORS) {
+      close(cursor);
+      cursor++;
+    }
+  }
+
+  // Returns true if the cursor is positioned at an element.
+  public static boolean hasMore(short cursor) {
+    return cursors[(short) (cursor * CURSOR_SIZE + REMAINING)] > 0;
+  }
+
+  // Returns the current element of an array or the key of the current entry of a map.
+  public static short get(short cursor) {
+    return cursors[(short) (cursor * CURSOR_SIZE + POSITION)];
+  }
+
+  // Returns the value of the current entry of a map.
+  public static short value(short cursor) {
+    return cursors[(short) (cursor * CURSOR_SIZE + VALUE)];
+  }
+
+  // Moves the cursor to the following element or entry.
+  public static void advance(short cursor) {
+    short base = (short) (cursor * CURSOR_SIZE);
+    if (cursors[(short) (base + REMAINING)] <= 0) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    if (cursors[(short) (base + STATE)] == MAP_CURSOR) {
+      cursors[(short) (base + POSITION)] = prototype.next(cursors[(short) (base + VALUE)]);
+    } else {
+      cursors[(short) (base + POSITION)] = prototype.next(cursors[(short) (base + POSITION)]);
+    }
+    cursors[(short) (base + REMAINING)]--;
+    locateValue(base);
+  }
+
+  // Tells the cursor that the current element or entry has been removed from the encoding, so
+  // the following one now starts at the current position.
+  public static void removed(short cursor) {
+    short base = (short) (cursor * CURSOR_SIZE);
+    if (cursors[(short) (base + REMAINING)] <= 0) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    cursors[(short) (base + REMAINING)]--;
+    locateValue(base);
+  }
+
+  private static void locateValue(short base) {
+    if (cursors[(short) (base + STATE)] == MAP_CURSOR && cursors[(short) (base + REMAINING)] > 0) {
+      cursors[(short) (base + VALUE)] = prototype.next(cursors[(short) (base + POSITION)]);
+    } else {
+      cursors[(short) (base + VALUE)] = KMType.INVALID_VALUE;
+    }
+  }
+}
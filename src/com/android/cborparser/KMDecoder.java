@@ -48,51 +48,986 @@ public class KMDecoder {
   private static final short UINT32_LENGTH = 0x1A;
   private static final short UINT64_LENGTH = 0x1B;
 
-  private static final byte SCRATCH_BUF_SIZE = 6;
+  // Decoder options
+  public static final byte OPT_NONE = 0x00;
+  // Record the offsets of the children of decoded arrays and maps in the child offset index of
+  // the repository, so that indexed access to the decoded containers is a single table read.
+  public static final byte OPT_INDEX_CHILDREN = 0x01;
+  // Record the encoded length of decoded arrays and maps in the subtree length memo of the
+  // repository, so that skipping over them later does not walk their descendants.
+  public static final byte OPT_CACHE_LENGTHS = 0x02;
+  // Rewrite indefinite length arrays, maps and chunked strings in place to their definite length
+  // encoding once they are decoded, so that later accesses read the length from the header. The
+  // input which follows a normalized item is moved up by the bytes the rewrite saves. Normalizing
+  // is best effort: containers with more than 255 children are left indefinite, as their definite
+  // header is longer than the initial byte and the break it would replace.
+  public static final byte OPT_NORMALIZE_INDEFINITE = 0x04;
+  // Verify the deterministic encoding of the input while decoding it: the keys of each map must be
+  // in strictly increasing canonical order i.e. the order of KMMap.canonicalize, which also rules
+  // out duplicate keys, and integers must have their shortest encoding. Each key is compared with
+  // the key before it only. Verified maps in the heap are marked canonical and their children are
+  // indexed, so that they are searched using binary search without being sorted again.
+  public static final byte OPT_CANONICAL = 0x08;
+  // Record the known tags of decoded key parameters in a presence bitmap allocated in the heap,
+  // so that presence checks on the decoded key parameters are bit tests.
+  public static final byte OPT_TAG_PRESENCE = 0x10;
+
+  // Returned by decodeChunk while the item is not complete.
+  public static final short NEED_MORE_DATA = (short) 0xFFFF;
+
+  private static final byte SCRATCH_BUF_SIZE = 10;
   private static final byte START_OFFSET = 0;
+  private static final byte ROOT_PC_OFFSET = 1;
   private static final byte LEN_OFFSET = 2;
+  private static final byte CAPACITY_OFFSET = 3;
   private static final byte TAG_KEY_OFFSET = 4;
+  private static final byte STREAM_OFFSET = 5;
+  private static final byte OPTIONS_OFFSET = 6;
+  private static final byte DEPTH_OFFSET = 7;
+  // Status of the decode. Failures are recorded here as a KMError code instead of being thrown,
+  // and the first one is raised once by the public method which runs the decode.
+  private static final byte STATUS_OFFSET = 8;
+  // Number of items skipped since the decode started, i.e. all the items read by a scan.
+  private static final byte ITEMS_OFFSET = 9;
   private Object[] bufferRef;
   private short[] scratchBuf;
 
+  // Decoder stack holds a frame for each container being decoded. struct{short kind; short pc;
+  // short startOff; short remaining; short index; short slot; short childPc; short bitmap; short
+  // keyPtr; short keyLength} where pc is the instruction of the container, remaining and index
+  // count the children i.e. both keys and values for maps, childPc is the instruction of the next
+  // child, bitmap is used by key parameters and keyPtr and keyLength are the last key of a map.
+  private static final byte MAX_DEPTH = 8;
+  private static final byte FRAME_SIZE = 10;
+  private static final byte FRAME_KIND = 0;
+  private static final byte FRAME_PC = 1;
+  private static final byte FRAME_START = 2;
+  private static final byte FRAME_REMAINING = 3;
+  private static final byte FRAME_INDEX = 4;
+  private static final byte FRAME_SLOT = 5;
+  private static final byte FRAME_CHILD_PC = 6;
+  private static final byte FRAME_BITMAP = 7;
+  private static final byte FRAME_KEY = 8;
+  private static final byte FRAME_KEY_LENGTH = 9;
+  // Frame kinds
+  private static final byte ARRAY_FRAME = 1;
+  private static final byte MAP_FRAME = 2;
+  private static final byte KEY_PARAM_FRAME = 3;
+  private static final byte SEMANTIC_TAG_FRAME = 4;
+  private static final byte CHUNKED_FRAME = 5;
+  private static final byte SKIP_FRAME = 6;
+  private static final byte ARRAY_OF_FRAME = 7;
+  // Remaining count of the frames of indefinite length items, which end at a break instead.
+  private static final short INDEFINITE = KMType.INVALID_VALUE;
+  // Instruction of items which are skipped without an instruction in the program, i.e. the keys
+  // and values of tags ignored by key parameters.
+  private static final short SKIP_PC = 0x7FFF;
+  private short[] stack;
+  // Program compiled from the expression passed to decode. It grows to the size of the largest
+  // program compiled.
+  private static final short PROGRAM_SIZE = 128;
+  private short[] program;
+  private static final byte BUFFER_REF = 0;
+  private static final byte PROGRAM_REF = 1;
+
   public KMDecoder() {
-    bufferRef = JCSystem.makeTransientObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
+    bufferRef = JCSystem.makeTransientObjectArray((short) 2, JCSystem.CLEAR_ON_RESET);
     scratchBuf = JCSystem.makeTransientShortArray(SCRATCH_BUF_SIZE, JCSystem.CLEAR_ON_RESET);
-    bufferRef[0] = null;
+    stack =
+        JCSystem.makeTransientShortArray(
+            (short) (MAX_DEPTH * FRAME_SIZE), JCSystem.CLEAR_ON_RESET);
+    program = JCSystem.makeTransientShortArray(PROGRAM_SIZE, JCSystem.CLEAR_ON_RESET);
+    bufferRef[BUFFER_REF] = null;
+    bufferRef[PROGRAM_REF] = null;
     scratchBuf[START_OFFSET] = (short) 0;
     scratchBuf[LEN_OFFSET] = (short) 0;
     scratchBuf[TAG_KEY_OFFSET] = (short) 0;
+    scratchBuf[OPTIONS_OFFSET] = OPT_NONE;
+    scratchBuf[STATUS_OFFSET] = KMError.OK;
+  }
+
+  public void setOptions(byte options) {
+    scratchBuf[OPTIONS_OFFSET] = options;
+    KMRepository.instance().setLengthCacheEnabled((options & OPT_CACHE_LENGTHS) != 0);
+  }
+
+  public byte getOptions() {
+    return (byte) scratchBuf[OPTIONS_OFFSET];
   }
 
   public short decode(short exp, byte[] buffer, short startOff, short length) {
-    bufferRef[0] = buffer;
-    scratchBuf[START_OFFSET] = startOff;
-    scratchBuf[LEN_OFFSET] = (short) (startOff + length);
-    return decode(exp);
+    compile(exp);
+    return decode(program, (short) 0, buffer, startOff, length);
+  }
+
+  // Decodes a CBOR sequence (RFC 8742) i.e. items of the expression which follow each other up to
+  // the end of the input. The offset of each item is written to offsets from offsetsOff onwards.
+  // The expression is compiled once and the decoder state carries on from one item to the next.
+  // Returns the number of items.
+  public short decodeSequence(short exp, byte[] buffer, short startOff, short length,
+      short[] offsets, short offsetsOff) {
+    compile(exp);
+    start(program, (short) 0, buffer, startOff, (short) (startOff + length), false);
+    short count = 0;
+    while (scratchBuf[START_OFFSET] < scratchBuf[LEN_OFFSET]) {
+      if ((short) (offsetsOff + count) >= (short) offsets.length) {
+        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+      }
+      scratchBuf[ROOT_PC_OFFSET] = 0;
+      offsets[(short) (offsetsOff + count)] = proceed();
+      checkStatus();
+      count++;
+    }
+    return count;
   }
 
+  // Decodes a CBOR sequence of one item for each of the given expressions, in order, which must
+  // take the whole input. The offset of each item is written to offsets from offsetsOff onwards.
+  // Returns the number of items.
+  public short decodeSequence(short[] exps, short expsOff, short expsLen, byte[] buffer,
+      short startOff, short length, short[] offsets, short offsetsOff) {
+    if (expsLen < 0 || (short) (offsetsOff + expsLen) > (short) offsets.length) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    // Each expression is compiled right before its item is decoded, so the program only has to
+    // hold one of them. The decoder state carries on from one item to the next.
+    start(program, (short) 0, buffer, startOff, (short) (startOff + length), false);
+    short index = 0;
+    while (index < expsLen) {
+      compile(exps[(short) (expsOff + index)]);
+      bufferRef[PROGRAM_REF] = program;
+      scratchBuf[ROOT_PC_OFFSET] = 0;
+      offsets[(short) (offsetsOff + index)] = proceed();
+      checkStatus();
+      index++;
+    }
+    if (scratchBuf[START_OFFSET] != scratchBuf[LEN_OFFSET]) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    return expsLen;
+  }
+
+  // Compiles the expression into the program of the decoder, which is reallocated first if the
+  // program does not fit. Transient memory cannot be freed, so it only ever grows.
+  private void compile(short exp) {
+    short size = KMSchema.programSize(exp);
+    if (size > (short) program.length) {
+      program = JCSystem.makeTransientShortArray(size, JCSystem.CLEAR_ON_RESET);
+    }
+    KMSchema.compile(exp, program, (short) 0);
+  }
+
+  // Decodes only the items on the given paths of the expression and skips all others. See
+  // KMSchema.project for the layout of the paths.
+  public short decode(short exp, short[] paths, short pathsOff, short pathsLen, byte[] buffer,
+      short startOff, short length) {
+    compile(exp);
+    KMSchema.project(program, (short) 0, paths, pathsOff, pathsLen);
+    return decode(program, (short) 0, buffer, startOff, length);
+  }
+
+  // Decodes the input as per a program compiled by KMSchema. The program at the given pc can be
+  // compiled once and reused for every decode.
+  public short decode(short[] prog, short pc, byte[] buffer, short startOff, short length) {
+    start(prog, pc, buffer, startOff, (short) (startOff + length), false);
+    short ptr = proceed();
+    checkStatus();
+    return ptr;
+  }
+
+  // Decodes the item at the current offset as per the expression.
   public short decode(short exp) {
-    byte type = KMType.getMajorType(exp);
-    switch (type) {
-      case KMType.MAJOR_TYPE_INT:
-        return decodeInteger(exp);
-      case KMType.MAJOR_TYPE_BYTE_BLOB:
-        return decodeByteBlob();
-      case KMType.MAJOR_TYPE_ARRAY:
-        return decodeArray(exp);
-      case KMType.MAJOR_TYPE_MAP:
-        return decodeMap(exp);
+    compile(exp);
+    bufferRef[PROGRAM_REF] = program;
+    scratchBuf[ROOT_PC_OFFSET] = 0;
+    scratchBuf[DEPTH_OFFSET] = 0;
+    scratchBuf[STATUS_OFFSET] = KMError.OK;
+    short ptr = proceed();
+    checkStatus();
+    return ptr;
+  }
+
+  // Checks that the input starts with one well formed CBOR item without decoding it against an
+  // expression. The item is read in a single pass using only the arithmetic of the headers, so
+  // bad initial bytes, reserved additional information, lengths which run past the input and
+  // malformed indefinite length items are rejected, but no type is validated. Items may be nested
+  // up to the depth of the decoder stack. Returns the offset
+  // of the end of the item. The number of items read, counting all the nested ones, is then
+  // returned by getItemCount.
+  public short scan(byte[] buffer, short startOff, short length) {
+    start(program, SKIP_PC, buffer, startOff, (short) (startOff + length), false);
+    proceed();
+    checkStatus();
+    return scratchBuf[START_OFFSET];
+  }
+
+  public short getItemCount() {
+    return scratchBuf[ITEMS_OFFSET];
+  }
+
+  // Starts a streamed decode. The input is passed in chunks to decodeChunk, which appends each
+  // chunk to the buffer from startOff onwards and decodes as much as the received bytes allow.
+  // All the decoder state is kept in transient memory, so the decode resumes with the next chunk
+  // i.e. the next APDU. The buffer must have room for the whole item, skipped items included, as
+  // they are kept byte for byte so that the decoded item is the same as the one of a decode of the
+  // whole input. The expression is compiled into the program of the decoder, so no other decode
+  // can run until the stream completes.
+  public void startStream(short exp, byte[] buffer, short startOff, short capacity) {
+    compile(exp);
+    startStream(program, (short) 0, buffer, startOff, capacity);
+  }
+
+  public void startStream(short[] prog, short pc, byte[] buffer, short startOff, short capacity) {
+    start(prog, pc, buffer, startOff, startOff, true);
+    scratchBuf[CAPACITY_OFFSET] = (short) (startOff + capacity);
+  }
+
+  // Returns the offset of the decoded item once it is complete, otherwise NEED_MORE_DATA. Bytes
+  // received after the end of the item fail the decode with ISO7816.SW_WRONG_LENGTH.
+  public short decodeChunk(byte[] chunk, short chunkOff, short chunkLen) {
+    if (scratchBuf[STREAM_OFFSET] == 0) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+    short end = scratchBuf[LEN_OFFSET];
+    if (chunkLen < 0 || chunkLen > (short) (scratchBuf[CAPACITY_OFFSET] - end)) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    Util.arrayCopyNonAtomic(chunk, chunkOff, (byte[]) bufferRef[BUFFER_REF], end, chunkLen);
+    scratchBuf[LEN_OFFSET] = (short) (end + chunkLen);
+    short ptr = proceed();
+    if (ptr != NEED_MORE_DATA && scratchBuf[START_OFFSET] != scratchBuf[LEN_OFFSET]) {
+      fail(KMError.SW_WRONG_LENGTH);
+    }
+    if (ptr != NEED_MORE_DATA || failed()) {
+      scratchBuf[STREAM_OFFSET] = 0;
+    }
+    checkStatus();
+    return ptr;
+  }
+
+  private void start(
+      short[] prog, short pc, byte[] buffer, short startOff, short endOff, boolean stream) {
+    bufferRef[BUFFER_REF] = buffer;
+    bufferRef[PROGRAM_REF] = prog;
+    scratchBuf[START_OFFSET] = startOff;
+    scratchBuf[LEN_OFFSET] = endOff;
+    scratchBuf[ROOT_PC_OFFSET] = pc;
+    scratchBuf[STREAM_OFFSET] = stream ? (short) 1 : (short) 0;
+    // Frames left behind by a failed decode are discarded.
+    scratchBuf[DEPTH_OFFSET] = 0;
+    scratchBuf[STATUS_OFFSET] = KMError.OK;
+    scratchBuf[ITEMS_OFFSET] = 0;
+  }
+
+  // Records the status of a failed decode. Only the first failure is kept, as the ones which
+  // follow are its consequences.
+  private void fail(short status) {
+    if (scratchBuf[STATUS_OFFSET] == KMError.OK) {
+      scratchBuf[STATUS_OFFSET] = status;
+    }
+  }
+
+  private boolean failed() {
+    return scratchBuf[STATUS_OFFSET] != KMError.OK;
+  }
+
+  private void checkStatus() {
+    raise(scratchBuf[STATUS_OFFSET]);
+  }
+
+  // Throws the exception of the status, as the public methods of the decoder always did.
+  private static void raise(short status) {
+    switch (status) {
+      case KMError.OK:
+        return;
+      case KMError.INVALID_TAG:
+        KMException.throwIt(KMError.INVALID_TAG);
+        return;
+      case KMError.SW_WRONG_LENGTH:
+        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        return;
+      case KMError.SW_CONDITIONS_NOT_SATISFIED:
+        ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        return;
       default:
         ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        return (short) 0;
     }
+  }
 
+  // Runs the program until the root item is decoded or the received input runs out. Arrays and
+  // maps are not decoded recursively; each container pushes a frame on the decoder stack and its
+  // children are decoded in a loop, so the depth of the call stack does not depend on the nesting
+  // of the input. A child is started only when all its fixed size bytes i.e. its header, or the
+  // whole of a byte string, have been received, so the state is consistent between chunks. The
+  // decode stops at the first failure, whose status is left for the caller to raise.
+  private short proceed() {
+    short pc = scratchBuf[ROOT_PC_OFFSET];
+    short ptr;
+    if (pc != KMType.INVALID_VALUE) {
+      if (!itemReady()) {
+        return NEED_MORE_DATA;
+      }
+      scratchBuf[ROOT_PC_OFFSET] = KMType.INVALID_VALUE;
+      ptr = decodeItem(pc);
+      if (failed()) {
+        return KMType.INVALID_VALUE;
+      }
+      if (ptr != KMType.INVALID_VALUE) {
+        return ptr;
+      }
+    }
+    short frame;
+    while (true) {
+      frame = (short) ((short) (scratchBuf[DEPTH_OFFSET] - 1) * FRAME_SIZE);
+      if (stack[(short) (frame + FRAME_REMAINING)] == INDEFINITE) {
+        if (!itemReady()) {
+          return NEED_MORE_DATA;
+        }
+        if (buffer()[scratchBuf[START_OFFSET]] == KMType.BREAK) {
+          endIndefinite(frame);
+          if (failed()) {
+            return KMType.INVALID_VALUE;
+          }
+        }
+      }
+      if (stack[(short) (frame + FRAME_REMAINING)] == 0) {
+        ptr = finishContainer(frame);
+        scratchBuf[DEPTH_OFFSET]--;
+        if (scratchBuf[DEPTH_OFFSET] == 0) {
+          return ptr;
+        }
+        childDecoded((short) (frame - FRAME_SIZE), ptr);
+      } else {
+        if (!itemReady()) {
+          return NEED_MORE_DATA;
+        }
+        ptr = decodeItem(nextChild(frame));
+        if (ptr != KMType.INVALID_VALUE && !failed()) {
+          childDecoded(frame, ptr);
+        }
+      }
+      if (failed()) {
+        return KMType.INVALID_VALUE;
+      }
+    }
+  }
+
+  // Returns true if the fixed size bytes of the item at the current offset are available. In a
+  // streamed decode the missing bytes are still to come; otherwise the input is truncated.
+  private boolean itemReady() {
+    short startOff = scratchBuf[START_OFFSET];
+    short available = (short) (scratchBuf[LEN_OFFSET] - startOff);
+    boolean ready = available > 0;
+    if (ready) {
+      short desc = KMType.descriptor(((byte[]) bufferRef[BUFFER_REF])[startOff]);
+      short length = KMType.descHeaderLength(desc);
+      ready = available >= length;
+      byte majorType = KMType.descMajorType(desc);
+      if (ready && length > 2 && !KMType.descIndefinite(desc)
+          && majorType != KMType.MAJOR_TYPE_INT && majorType != KMType.MAJOR_TYPE_NEG_INT
+          && majorType != KMType.MAJOR_TYPE_SEMANTIC_TAG
+          && majorType != KMType.MAJOR_TYPE_SIMPLE_VALUE
+          && !countFits(startOff, length, majorType == KMType.MAJOR_TYPE_MAP)) {
+        // Length of a string or number of children of an array or map which no input can hold.
+        fail(KMError.INVALID_INPUT_LENGTH);
+        return false;
+      }
+      if (ready && length != 0 && !KMType.descIndefinite(desc)
+          && (majorType == KMType.MAJOR_TYPE_BYTE_BLOB
+              || majorType == KMType.MAJOR_TYPE_TEXT_STRING)) {
+        ready = available >= stringLength(startOff);
+      }
+    }
+    if (!ready && scratchBuf[STREAM_OFFSET] == 0) {
+      fail(KMError.INVALID_INPUT_LENGTH);
+    }
+    return ready;
+  }
+
+  // Returns true if the argument of the header at the offset fits in a short, or in half of a
+  // short for maps, as their keys and values are counted together.
+  private boolean countFits(short ptr, short headerLength, boolean map) {
+    byte[] buffer = buffer();
+    short last = (short) (ptr + headerLength - 2);
+    for (short i = (short) (ptr + 1); i < last; i++) {
+      if (buffer[i] != 0) {
+        return false;
+      }
+    }
+    return (short) (buffer[last] & 0xFF) <= (map ? 0x3F : 0x7F);
+  }
+
+  // Decodes a scalar and returns its offset, or pushes a frame for a container or a semantic tag and
+  // returns KMType.INVALID_VALUE. The opcode is a single switch. The major type of the initial byte
+  // is checked against it first, so the casts of the cases do not throw.
+  private short decodeItem(short pc) {
+    if (pc == SKIP_PC) {
+      return skipItem(pc);
+    }
+    if (pc == KMType.INVALID_VALUE) {
+      fail(KMError.INVALID_DATA);
+      return KMType.INVALID_VALUE;
+    }
+    short[] prog = (short[]) bufferRef[PROGRAM_REF];
+    short opcode = prog[(short) (pc + KMSchema.OPCODE)];
+    short desc = KMType.descriptor(buffer()[scratchBuf[START_OFFSET]]);
+    if (KMType.descHeaderLength(desc) == 0) {
+      fail(KMError.INVALID_DATA);
+      return KMType.INVALID_VALUE;
+    }
+    if (opcode == KMSchema.OP_ONE_OF) {
+      // Alternatives are chosen by the initial byte alone, so nothing is decoded twice.
+      pc = selectAlternative(pc);
+      if (pc == KMType.INVALID_VALUE) {
+        fail(KMError.SW_CONDITIONS_NOT_SATISFIED);
+        return KMType.INVALID_VALUE;
+      }
+      return decodeItem(pc);
+    }
+    if (opcode != KMSchema.OP_SKIP && KMType.descMajorType(desc) != KMSchema.majorType(opcode)) {
+      fail(KMError.SW_CONDITIONS_NOT_SATISFIED);
+      return KMType.INVALID_VALUE;
+    }
+    if ((opcode == KMSchema.OP_UINT || opcode == KMSchema.OP_NINT)
+        && (scratchBuf[OPTIONS_OFFSET] & OPT_CANONICAL) != 0
+        && !shortestArgument(scratchBuf[START_OFFSET])) {
+      fail(KMError.INVALID_DATA);
+      return KMType.INVALID_VALUE;
+    }
+    switch (opcode) {
+      case KMSchema.OP_UINT:
+        return decodeInteger(prog[(short) (pc + KMSchema.ARG)]);
+      case KMSchema.OP_BYTES:
+        if (KMType.isIndefinite(buffer(), scratchBuf[START_OFFSET])) {
+          pushChunked(pc);
+          return KMType.INVALID_VALUE;
+        }
+        return decodeByteBlob();
+      case KMSchema.OP_ARRAY:
+        pushArray(pc);
+        return KMType.INVALID_VALUE;
+      case KMSchema.OP_ARRAY_OF:
+        pushArrayOf(pc);
+        return KMType.INVALID_VALUE;
+      case KMSchema.OP_MAP:
+        pushMap(pc, prog[(short) (pc + KMSchema.ARG)]);
+        return KMType.INVALID_VALUE;
+      case KMSchema.OP_KEY_PARAMS:
+        pushKeyParam(pc);
+        return KMType.INVALID_VALUE;
+      case KMSchema.OP_NINT:
+        return decodeScalar(KMNInteger.cast(buffer(), scratchBuf[START_OFFSET]).length());
+      case KMSchema.OP_TEXT:
+        if (KMType.isIndefinite(buffer(), scratchBuf[START_OFFSET])) {
+          pushChunked(pc);
+          return KMType.INVALID_VALUE;
+        }
+        return decodeScalar(stringLength(scratchBuf[START_OFFSET]));
+      case KMSchema.OP_SIMPLE:
+        return decodeScalar(KMSimpleValue.cast(buffer(), scratchBuf[START_OFFSET]).length());
+      case KMSchema.OP_SEMANTIC_TAG:
+        pushSemanticTag(pc, prog[(short) (pc + KMSchema.ARG)]);
+        return KMType.INVALID_VALUE;
+      case KMSchema.OP_SKIP:
+        return skipItem(pc);
+      default:
+        fail(KMError.INVALID_DATA);
+        return KMType.INVALID_VALUE;
+    }
+  }
+
+  // Returns true if the argument of the header at the offset has its shortest encoding.
+  private boolean shortestArgument(short ptr) {
+    byte[] buffer = buffer();
+    short addInfo = (short) (buffer[ptr] & ADDITIONAL_MASK);
+    if (addInfo < UINT8_LENGTH) {
+      return true;
+    }
+    if (addInfo == UINT8_LENGTH) {
+      return (short) (buffer[(short) (ptr + 1)] & 0xFF) >= UINT8_LENGTH;
+    }
+    // The upper half of a 16, 32 or 64 bit argument must not be zero.
+    short half = (short) (1 << (short) (addInfo - UINT16_LENGTH));
+    for (short i = 1; i <= half; i++) {
+      if (buffer[(short) (ptr + i)] != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Returns the first alternative of the one of instruction which accepts the major type of the
+  // item at the current offset, or KMType.INVALID_VALUE.
+  private short selectAlternative(short pc) {
+    short[] prog = (short[]) bufferRef[PROGRAM_REF];
+    short bit = (short) (1 << (short) ((short) (buffer()[scratchBuf[START_OFFSET]] >> 5) & 0x07));
+    if ((short) (prog[(short) (pc + KMSchema.ARG)] & bit) == 0) {
+      return KMType.INVALID_VALUE;
+    }
+    short end = KMSchema.skip(prog, pc);
+    short alternative = (short) (pc + KMSchema.INSTRUCTION_SIZE);
+    while (alternative < end) {
+      if ((short) (KMSchema.typeMask(prog, alternative) & bit) != 0) {
+        return alternative;
+      }
+      alternative = KMSchema.skip(prog, alternative);
+    }
+    return KMType.INVALID_VALUE;
+  }
+
+  // Returns the frame, or KMType.INVALID_VALUE if the stack is full.
+  private short pushFrame(byte kind, short pc, short children, short headerLength) {
+    if (scratchBuf[DEPTH_OFFSET] >= MAX_DEPTH) {
+      fail(KMError.INVALID_DATA);
+      return KMType.INVALID_VALUE;
+    }
+    short startOff = scratchBuf[START_OFFSET];
+    short frame = (short) (scratchBuf[DEPTH_OFFSET] * FRAME_SIZE);
+    incrementStartOff(headerLength);
+    stack[(short) (frame + FRAME_KIND)] = kind;
+    stack[(short) (frame + FRAME_PC)] = pc;
+    stack[(short) (frame + FRAME_START)] = startOff;
+    stack[(short) (frame + FRAME_REMAINING)] = children;
+    stack[(short) (frame + FRAME_INDEX)] = 0;
+    stack[(short) (frame + FRAME_SLOT)] = KMType.INVALID_VALUE;
+    if ((kind == ARRAY_FRAME || kind == ARRAY_OF_FRAME || kind == MAP_FRAME
+        || kind == KEY_PARAM_FRAME) && children != INDEFINITE) {
+      stack[(short) (frame + FRAME_SLOT)] = reserveChildIndex(kind, startOff, children);
+    }
+    stack[(short) (frame + FRAME_CHILD_PC)] = KMType.INVALID_VALUE;
+    stack[(short) (frame + FRAME_BITMAP)] = KMType.INVALID_VALUE;
+    stack[(short) (frame + FRAME_KEY)] = KMType.INVALID_VALUE;
+    stack[(short) (frame + FRAME_KEY_LENGTH)] = 0;
+    scratchBuf[DEPTH_OFFSET]++;
+    return frame;
+  }
+
+  // The arity of the array is checked against its header once, so arrays with optional trailing
+  // elements are decoded in a single pass.
+  private void pushArray(short pc) {
+    short[] prog = (short[]) bufferRef[PROGRAM_REF];
+    short expLength = KMSchema.maxElements(prog, pc);
+    short startOff = scratchBuf[START_OFFSET];
+    short payloadLength = childCount(startOff, (short) 1);
+    if (expLength != 0 && payloadLength != INDEFINITE
+        && (payloadLength > expLength || payloadLength < KMSchema.minElements(prog, pc))) {
+      fail(KMError.SW_WRONG_LENGTH);
+      return;
+    }
+    short frame =
+        pushFrame(ARRAY_FRAME, pc, payloadLength, KMArray.cast(buffer(), startOff).headerLength());
+    // Element instructions are run in order. An empty expression has no element instruction.
+    if (expLength != 0 && frame != KMType.INVALID_VALUE) {
+      stack[(short) (frame + FRAME_CHILD_PC)] = (short) (pc + KMSchema.INSTRUCTION_SIZE);
+    }
+  }
+
+  // Elements of a homogeneous array all run the instruction which follows the array instruction,
+  // so the array can have any length.
+  private void pushArrayOf(short pc) {
+    short startOff = scratchBuf[START_OFFSET];
+    short frame =
+        pushFrame(
+            ARRAY_OF_FRAME,
+            pc,
+            childCount(startOff, (short) 1),
+            KMArray.cast(buffer(), startOff).headerLength());
+    if (frame != KMType.INVALID_VALUE) {
+      stack[(short) (frame + FRAME_CHILD_PC)] = (short) (pc + KMSchema.INSTRUCTION_SIZE);
+    }
   }
 
-  private short decodeInteger(short exp) {
+  private void pushMap(short pc, short expLength) {
     short startOff = scratchBuf[START_OFFSET];
-    short key = KMInteger.cast(exp).getShort();
-    short length = KMInteger.cast(startOff).length();
+    short payloadLength = childCount(startOff, (short) 2);
+    if (expLength != 0 && payloadLength != INDEFINITE
+        && payloadLength > (short) (expLength * 2)) {
+      fail(KMError.SW_WRONG_LENGTH);
+      return;
+    }
+    short frame =
+        pushFrame(MAP_FRAME, pc, payloadLength, KMMap.cast(buffer(), startOff).headerLength());
+    if (expLength != 0 && frame != KMType.INVALID_VALUE) {
+      stack[(short) (frame + FRAME_CHILD_PC)] = (short) (pc + KMSchema.INSTRUCTION_SIZE);
+    }
+  }
+
+  private void pushKeyParam(short pc) {
+    short startOff = scratchBuf[START_OFFSET];
+    short frame =
+        pushFrame(
+            KEY_PARAM_FRAME,
+            pc,
+            childCount(startOff, (short) 2),
+            KMMap.cast(buffer(), startOff).headerLength());
+    if (frame == KMType.INVALID_VALUE
+        || (scratchBuf[OPTIONS_OFFSET] & OPT_TAG_PRESENCE) == 0 || !onHeap()) {
+      return;
+    }
+    short bitmap = KMTag.makePresenceBitmap();
+    if (KMRepository.instance().attach(startOff, KMRepository.TAG_PRESENCE, bitmap)) {
+      stack[(short) (frame + FRAME_BITMAP)] = bitmap;
+    } else {
+      KMRepository.instance().setHeapIndex(bitmap);
+    }
+  }
+
+  // Returns the number of children of the array or map at the offset, counting both keys and
+  // values of maps, or INDEFINITE.
+  private short childCount(short startOff, short itemsPerEntry) {
+    if (KMType.isIndefinite(buffer(), startOff)) {
+      return INDEFINITE;
+    }
+    if (itemsPerEntry == 1) {
+      return KMArray.cast(buffer(), startOff).length();
+    }
+    return (short) (KMMap.cast(buffer(), startOff).length() * 2);
+  }
+
+  // A chunked string is decoded as a container of definite length strings of the same major
+  // type, which all run the instruction of the string.
+  private void pushChunked(short pc) {
+    short depth = scratchBuf[DEPTH_OFFSET];
+    if (depth > 0
+        && stack[(short) ((short) (depth - 1) * FRAME_SIZE + FRAME_KIND)] == CHUNKED_FRAME) {
+      fail(KMError.INVALID_DATA);
+      return;
+    }
+    short frame = pushFrame(CHUNKED_FRAME, pc, INDEFINITE, (short) 1);
+    if (frame != KMType.INVALID_VALUE) {
+      stack[(short) (frame + FRAME_CHILD_PC)] = pc;
+    }
+  }
+
+  // Skips the item at the current offset. Scalars are passed over by their header and containers
+  // push a frame whose children all run the same skip instruction. Returns the offset of a
+  // scalar, or KMType.INVALID_VALUE.
+  private short skipItem(short pc) {
+    short startOff = scratchBuf[START_OFFSET];
+    short desc = KMType.descriptor(buffer()[startOff]);
+    short headerLength = KMType.descHeaderLength(desc);
+    short children;
+    if (headerLength == 0 || !wellFormedSkip(desc)) {
+      fail(KMError.INVALID_DATA);
+      return KMType.INVALID_VALUE;
+    }
+    scratchBuf[ITEMS_OFFSET]++;
+    if (KMType.descIndefinite(desc)) {
+      children = INDEFINITE;
+    } else {
+      switch (KMType.descMajorType(desc)) {
+        case KMType.MAJOR_TYPE_BYTE_BLOB:
+        case KMType.MAJOR_TYPE_TEXT_STRING:
+          return decodeScalar(stringLength(startOff));
+        case KMType.MAJOR_TYPE_ARRAY:
+          children = KMArray.cast(buffer(), startOff).length();
+          break;
+        case KMType.MAJOR_TYPE_MAP:
+          children = (short) (KMMap.cast(buffer(), startOff).length() * 2);
+          break;
+        case KMType.MAJOR_TYPE_SEMANTIC_TAG:
+          children = 1;
+          break;
+        default:
+          return decodeScalar(headerLength);
+      }
+    }
+    short frame = pushFrame(SKIP_FRAME, pc, children, headerLength);
+    if (frame != KMType.INVALID_VALUE) {
+      stack[(short) (frame + FRAME_CHILD_PC)] = pc;
+    }
+    return KMType.INVALID_VALUE;
+  }
+
+  // Checks the rules of well formed items which the headers of the skipped items do not show: the
+  // chunks of an indefinite length string are definite length strings of its major type, and two
+  // byte simple values are not below 32.
+  private boolean wellFormedSkip(short desc) {
+    short depth = scratchBuf[DEPTH_OFFSET];
+    if (depth > 0) {
+      short frame = (short) ((short) (depth - 1) * FRAME_SIZE);
+      short parent = stack[(short) (frame + FRAME_START)];
+      byte parentType = KMType.getMajorType(buffer(), parent);
+      if (stack[(short) (frame + FRAME_KIND)] == SKIP_FRAME
+          && (parentType == KMType.MAJOR_TYPE_BYTE_BLOB
+              || parentType == KMType.MAJOR_TYPE_TEXT_STRING)
+          && (KMType.descMajorType(desc) != parentType || KMType.descIndefinite(desc))) {
+        return false;
+      }
+    }
+    return KMType.descMajorType(desc) != KMType.MAJOR_TYPE_SIMPLE_VALUE
+        || KMType.descAddInfo(desc) != UINT8_LENGTH
+        || (short) (buffer()[(short) (scratchBuf[START_OFFSET] + 1)] & 0xFF) >= 32;
+  }
+
+  // Called at the break of an indefinite length item.
+  private void endIndefinite(short frame) {
+    byte kind = (byte) stack[(short) (frame + FRAME_KIND)];
+    if (KMType.getMajorType(buffer(), stack[(short) (frame + FRAME_START)]) == KMType.MAJOR_TYPE_MAP
+        && (stack[(short) (frame + FRAME_INDEX)] & 1) != 0) {
+      // Break between a key and its value.
+      fail(KMError.INVALID_DATA);
+      return;
+    }
+    short[] prog = (short[]) bufferRef[PROGRAM_REF];
+    if (kind == ARRAY_FRAME && KMSchema.maxElements(prog, stack[(short) (frame + FRAME_PC)]) != 0
+        && stack[(short) (frame + FRAME_INDEX)]
+            < KMSchema.minElements(prog, stack[(short) (frame + FRAME_PC)])) {
+      fail(KMError.SW_WRONG_LENGTH);
+      return;
+    }
+    incrementStartOff((short) 1);
+    stack[(short) (frame + FRAME_REMAINING)] = 0;
+    // Skipped items are left as they are.
+    if ((scratchBuf[OPTIONS_OFFSET] & OPT_NORMALIZE_INDEFINITE) != 0 && kind != SKIP_FRAME) {
+      normalize(frame);
+    }
+  }
+
+  // Rewrites the indefinite length item of the frame, which ends at the current offset, to its
+  // definite length encoding with the shortest header. The encoding never grows, so containers
+  // with more than 255 children, whose header does not fit, are left as they are.
+  private void normalize(short frame) {
+    byte[] buffer = buffer();
+    short startOff = stack[(short) (frame + FRAME_START)];
+    short endOff = scratchBuf[START_OFFSET];
+    byte majorType = KMType.getMajorType(buffer, startOff);
+    short value;
+    short contentLength;
+    if (stack[(short) (frame + FRAME_KIND)] == CHUNKED_FRAME) {
+      // Move the contents of the chunks together first, as that only moves bytes down.
+      short ptr = (short) (startOff + 1);
+      short dest = ptr;
+      short chunkHeader;
+      short chunkLength;
+      while (ptr < (short) (endOff - 1)) {
+        chunkHeader = KMType.descHeaderLength(KMType.descriptor(buffer[ptr]));
+        chunkLength = (short) (stringLength(ptr) - chunkHeader);
+        Util.arrayCopyNonAtomic(buffer, (short) (ptr + chunkHeader), buffer, dest, chunkLength);
+        dest += chunkLength;
+        ptr += (short) (chunkHeader + chunkLength);
+      }
+      value = (short) (dest - startOff - 1);
+      contentLength = value;
+    } else {
+      value = stack[(short) (frame + FRAME_INDEX)];
+      if (majorType == KMType.MAJOR_TYPE_MAP) {
+        value = (short) (value / 2);
+      }
+      contentLength = (short) (endOff - startOff - 2);
+    }
+    short headerLength = headerLength(value);
+    if ((short) (headerLength + contentLength) > (short) (endOff - startOff)) {
+      return;
+    }
+    if (headerLength != 1 && onHeap()) {
+      // The content moves up, so the side tables of the items in it refer to stale offsets.
+      KMRepository.instance().releaseItemSideTables(startOff, endOff);
+    }
+    Util.arrayCopyNonAtomic(
+        buffer, (short) (startOff + 1), buffer, (short) (startOff + headerLength), contentLength);
+    writeHeader(buffer, startOff, majorType, value, headerLength);
+    compact(endOff, (short) (endOff - startOff - headerLength - contentLength));
+  }
+
+  // Removes the given number of bytes before the offset by moving the received input which
+  // follows it down.
+  private void compact(short endOff, short gap) {
+    if (gap == 0) {
+      return;
+    }
+    Util.arrayCopyNonAtomic(
+        buffer(), endOff, buffer(), (short) (endOff - gap), (short) (scratchBuf[LEN_OFFSET] - endOff));
+    scratchBuf[LEN_OFFSET] -= gap;
+    scratchBuf[START_OFFSET] -= gap;
+  }
+
+  private static short headerLength(short value) {
+    if (value <= 23) {
+      return 1;
+    }
+    if (value <= 255) {
+      return 2;
+    }
+    return 3;
+  }
+
+  private static void writeHeader(
+      byte[] buffer, short ptr, byte majorType, short value, short headerLength) {
+    switch (headerLength) {
+      case 1:
+        buffer[ptr] = (byte) (majorType | value);
+        break;
+      case 2:
+        buffer[ptr] = (byte) (majorType | 0x18);
+        buffer[(short) (ptr + 1)] = (byte) value;
+        break;
+      default:
+        buffer[ptr] = (byte) (majorType | 0x19);
+        Util.setShort(buffer, (short) (ptr + 1), value);
+        break;
+    }
+  }
+
+  // Returns the encoded length of the definite length byte or text string at the offset.
+  private short stringLength(short ptr) {
+    if (KMType.getMajorType(buffer(), ptr) == KMType.MAJOR_TYPE_TEXT_STRING) {
+      return (short) (KMTextString.cast(buffer(), ptr).headerLength()
+          + KMTextString.cast(buffer(), ptr).length());
+    }
+    return (short) (KMByteBlob.cast(buffer(), ptr).headerLength()
+        + KMByteBlob.cast(buffer(), ptr).length());
+  }
+
+  // A semantic tag is decoded as a container of one child i.e. the tagged item.
+  private void pushSemanticTag(short pc, short tag) {
+    short startOff = scratchBuf[START_OFFSET];
+    if (tag != 0 && KMSemanticTag.cast(buffer(), startOff).getTag() != tag) {
+      fail(KMError.INVALID_DATA);
+      return;
+    }
+    short frame =
+        pushFrame(
+            SEMANTIC_TAG_FRAME, pc, (short) 1, KMSemanticTag.cast(buffer(), startOff).headerLength());
+    if (frame != KMType.INVALID_VALUE) {
+      stack[(short) (frame + FRAME_CHILD_PC)] = (short) (pc + KMSchema.INSTRUCTION_SIZE);
+    }
+  }
+
+  // Returns the instruction of the next child of the container and moves the frame past it.
+  private short nextChild(short frame) {
+    short index = stack[(short) (frame + FRAME_INDEX)];
+    short childPc = stack[(short) (frame + FRAME_CHILD_PC)];
+    recordChild(stack[(short) (frame + FRAME_SLOT)], index);
+    if (stack[(short) (frame + FRAME_KIND)] == KEY_PARAM_FRAME) {
+      if ((index & 1) == 0) {
+        childPc = findTagExp(frame);
+      }
+    } else if (childPc != KMType.INVALID_VALUE
+        && stack[(short) (frame + FRAME_KIND)] != CHUNKED_FRAME
+        && stack[(short) (frame + FRAME_KIND)] != SKIP_FRAME
+        && stack[(short) (frame + FRAME_KIND)] != ARRAY_OF_FRAME) {
+      short[] prog = (short[]) bufferRef[PROGRAM_REF];
+      // Indefinite length items may run past the children of the expression.
+      if (childPc >= KMSchema.skip(prog, stack[(short) (frame + FRAME_PC)])) {
+        fail(KMError.SW_WRONG_LENGTH);
+        return KMType.INVALID_VALUE;
+      }
+      // Instructions of the children follow each other, so the next one is a single jump away.
+      stack[(short) (frame + FRAME_CHILD_PC)] = KMSchema.skip(prog, childPc);
+    }
+    stack[(short) (frame + FRAME_INDEX)]++;
+    if (stack[(short) (frame + FRAME_REMAINING)] != INDEFINITE) {
+      stack[(short) (frame + FRAME_REMAINING)]--;
+    }
+    return childPc;
+  }
+
+  // Finds the allowed tag type of the tag at the current offset through the dispatch table of the
+  // key parameters instruction. Returns the key instruction and keeps the value instruction in the
+  // frame for the following child. Tags of other tag types are skipped if the rule of the
+  // instruction ignores invalid tags.
+  private short findTagExp(short frame) {
+    short[] prog = (short[]) bufferRef[PROGRAM_REF];
+    short pc = stack[(short) (frame + FRAME_PC)];
+    if (KMType.getMajorType(buffer(), scratchBuf[START_OFFSET]) != KMType.MAJOR_TYPE_INT) {
+      fail(KMError.SW_CONDITIONS_NOT_SATISFIED);
+      return KMType.INVALID_VALUE;
+    }
+    short tagType = KMInteger.cast(buffer(), scratchBuf[START_OFFSET]).getSignificantShort();
+    short keyPc = KMSchema.dispatch(prog, pc, tagType);
+    if (keyPc == KMType.INVALID_VALUE) {
+      if (prog[(short) (pc + KMSchema.ARG)] == KMType.IGNORE_INVALID_TAGS) {
+        stack[(short) (frame + FRAME_CHILD_PC)] = SKIP_PC;
+        return SKIP_PC;
+      }
+      fail(KMError.INVALID_TAG);
+      return KMType.INVALID_VALUE;
+    }
+    stack[(short) (frame + FRAME_CHILD_PC)] = KMSchema.skip(prog, keyPc);
+    return keyPc;
+  }
+
+  // Called when the child of the container has been decoded completely.
+  private void childDecoded(short frame, short ptr) {
+    byte kind = (byte) stack[(short) (frame + FRAME_KIND)];
+    if (kind != KEY_PARAM_FRAME && kind != MAP_FRAME) {
+      return;
+    }
+    if ((stack[(short) (frame + FRAME_INDEX)] & 1) == 1) {
+      keyDecoded(frame, ptr);
+      return;
+    }
+    if (kind != KEY_PARAM_FRAME) {
+      return;
+    }
+    short keyPtr = stack[(short) (frame + FRAME_KEY)];
+    short valuePc = stack[(short) (frame + FRAME_CHILD_PC)];
+    if (valuePc == SKIP_PC) {
+      // Ignored tag.
+      return;
+    }
+    short[] prog = (short[]) bufferRef[PROGRAM_REF];
+    // Values of the tag types which are not projected are skipped, not validated.
+    if (prog[(short) (valuePc + KMSchema.OPCODE)] != KMSchema.OP_SKIP) {
+      short status = KMValidations.validateKeyParam(buffer(), keyPtr, ptr);
+      if (status == KMError.INVALID_TAG) {
+        if (prog[(short) (stack[(short) (frame + FRAME_PC)] + KMSchema.ARG)]
+            == KMType.IGNORE_INVALID_TAGS) {
+          // Unknown tags of allowed tag types are kept, but not marked present.
+          return;
+        }
+        status = validationFailure(status);
+      }
+      if (status != KMError.OK) {
+        fail(status);
+        return;
+      }
+    }
+    if (stack[(short) (frame + FRAME_BITMAP)] == KMType.INVALID_VALUE) {
+      return;
+    }
+    KMTag.setPresent(
+        stack[(short) (frame + FRAME_BITMAP)],
+        KMInteger.cast(buffer(), keyPtr).getSignificantShort(),
+        KMInteger.cast(buffer(), keyPtr).getShort());
+  }
+
+  // Records the key of the map entry. If the canonical order is verified, the key must sort after
+  // the key of the previous entry.
+  private void keyDecoded(short frame, short ptr) {
+    short length = (short) (scratchBuf[START_OFFSET] - ptr);
+    short prevPtr = stack[(short) (frame + FRAME_KEY)];
+    short prevLength = stack[(short) (frame + FRAME_KEY_LENGTH)];
+    if ((scratchBuf[OPTIONS_OFFSET] & OPT_CANONICAL) != 0 && prevPtr != KMType.INVALID_VALUE
+        && (prevLength > length
+            || (prevLength == length
+                && KMInteger.unsignedByteArrayCompare(buffer(), prevPtr, buffer(), ptr, length)
+                    >= 0))) {
+      fail(KMError.INVALID_DATA);
+      return;
+    }
+    stack[(short) (frame + FRAME_KEY)] = ptr;
+    stack[(short) (frame + FRAME_KEY_LENGTH)] = length;
+  }
+
+  private short finishContainer(short frame) {
+    short startOff = stack[(short) (frame + FRAME_START)];
+    byte majorType = KMType.getMajorType(buffer(), startOff);
+    if (majorType == KMType.MAJOR_TYPE_ARRAY || majorType == KMType.MAJOR_TYPE_MAP) {
+      cacheLength(startOff);
+    }
+    byte kind = (byte) stack[(short) (frame + FRAME_KIND)];
+    if ((kind == MAP_FRAME || kind == KEY_PARAM_FRAME)
+        && (scratchBuf[OPTIONS_OFFSET] & OPT_CANONICAL) != 0 && onHeap()) {
+      KMRepository.instance().attach(startOff, KMRepository.CANONICAL, (short) 0);
+    }
+    return startOff;
+  }
+
+  private short decodeInteger(short key) {
+    short startOff = scratchBuf[START_OFFSET];
+    short length = KMInteger.cast(buffer(), startOff).length();
     if (key != 0) {
       // unmask expression
       // TODO Currently none of the below switch types are 0. In future to handle '0' it is
@@ -119,13 +1054,13 @@ public class KMDecoder {
         case KMType.PURPOSE:
         case KMType.ECCURVE:
           // Enum Validation
-          byte value = KMInteger.cast(startOff).getByte();
+          byte value = KMInteger.cast(buffer(), startOff).getByte();
           if (!KMValidations.validateEnum(key, value)) {
-            ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+            fail(KMError.INVALID_DATA);
           }
           break;
         default:
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+          fail(KMError.INVALID_DATA);
       }
     }
     incrementStartOff(length);
@@ -133,161 +1068,70 @@ public class KMDecoder {
   }
 
   public void validateKeyParamPair(short keyPtr, short valuePtr) {
-    short tagType = KMInteger.cast(keyPtr).getSignificantShort();
-    switch (tagType) {
-      case KMType.ENUM_TAG:
-        if (!KMValidations.validateEnumTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.ENUM_ARRAY_TAG:
-        if (!KMValidations.validateEnumArrayTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.UINT_TAG:
-        if (!KMValidations.validateUIntTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.ULONG_TAG:
-        if (!KMValidations.validateULongTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.DATE_TAG:
-        if (!KMValidations.validateDateTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.UINT_ARRAY_TAG:
-        break;
-      case KMType.ULONG_ARRAY_TAG:
-        if (!KMValidations.validateULongArrayTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.BOOL_TAG:
-        if (!KMValidations.validateBoolTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.BIGNUM_TAG:
-        if (!KMValidations.validateBignumTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-      case KMType.BYTES_TAG:
-        if (!KMValidations.validateBytesTag(keyPtr, valuePtr)) {
-          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        }
-        break;
-    }
+    raise(validationFailure(KMValidations.validateKeyParam(buffer(), keyPtr, valuePtr)));
   }
 
-  public short decodeArray(short exp) {
-    short startOff = scratchBuf[START_OFFSET];
-    short payloadLength = KMArray.cast(startOff).length();
-    incrementStartOff(KMArray.cast(startOff).headerLength());
-    short index = 0;
-    short type;
-    short obj;
-      while (index < payloadLength) {
-        type = KMArray.cast(exp).get(index);
-        decode(type);
-        index++;
-      }
-    return startOff;
-  }
-  public short decodeMap(short exp) {
-    short rulePtr = KMMap.cast(exp).getKey((short) 0);
-    short rule = KMType.INVALID_VALUE;
-    if (rulePtr != KMType.INVALID_VALUE && (KMType.getMajorType(rulePtr) == KMType.MAJOR_TYPE_INT)) {
-      rule = KMInteger.cast(rulePtr).getShort();
-    }
-    if (rule == KMType.RULE) {
-      return decodeKeyParam(exp);
-    } else {
-      short startOff = scratchBuf[START_OFFSET];
-      short payloadLength = KMMap.cast(startOff).length();
-      incrementStartOff(KMMap.cast(startOff).headerLength());
-      short index = 0;
-      short type;
-      short obj;
-      while (index < payloadLength) {
-        type = KMMap.cast(exp).getKey(index);
-        decode(type);
-        type = KMMap.cast(exp).getKeyValue(index);
-        decode(type);
-        index++;
-      }
-      return startOff;
-    }
+  // Unknown tags of known tag types fail the validation of the value, i.e. with
+  // ISO7816.SW_DATA_INVALID, as they always did. Only unknown tag types raise INVALID_TAG.
+  private static short validationFailure(short status) {
+    return status == KMError.INVALID_TAG ? KMError.INVALID_DATA : status;
   }
 
-  private short decodeKeyParam(short exp) {
+  // Moves past a scalar of the given encoded length and returns its offset.
+  private short decodeScalar(short length) {
     short startOff = scratchBuf[START_OFFSET];
-    short payloadLength = KMMap.cast(startOff).length();
-    incrementStartOff(KMMap.cast(startOff).headerLength());
-    short tagRule = KMMap.cast(exp).getKeyValue((short) 0);
-    boolean ignoreInvalidTags = KMInteger.cast(tagRule).getByte() == KMType.IGNORE_INVALID_TAGS;
-    short length = KMMap.cast(exp).length();
-    short index = 0;
-    boolean tagFound;
-    short tagInd;
-    short tagType;
-    short tagKeyClass;
-    short tagValueClass;
-    short allowedType;
-    // For each tag in payload ...
-    while (index < payloadLength) {
-      tagFound = false;
-      tagInd = 1;
-      tagType = KMInteger.cast(scratchBuf[START_OFFSET]).getSignificantShort();
-      // Check against the allowed tags ...
-      while (tagInd < length) {
-        tagKeyClass = KMMap.cast(exp).getKey(tagInd);
-        tagValueClass = KMMap.cast(exp).getKeyValue(tagInd);
-        allowedType = KMInteger.cast(tagKeyClass).getShort();
-        // If it is part of allowed tags ...
-        if (tagType == allowedType) {
-          // then decodeByteBlob and add that to the array.
-          try {
-            tagFound = true;
-            validateKeyParamPair(decode(tagKeyClass), decode(tagValueClass));
-            break;
-          } catch (KMException e) {
-            if (KMException.reason() == KMError.INVALID_TAG) {
-              if (!ignoreInvalidTags) {
-                KMException.throwIt(KMError.INVALID_TAG);
-              }
-            } else {
-              KMException.throwIt(KMException.reason());
-            }
-            break;
-          }
-        }
-        tagInd++;
-      }
-      if (!tagFound) {
-        KMException.throwIt(KMError.INVALID_TAG);
-      } else {
-        index++;
-      }
-    }
+    incrementStartOff(length);
     return startOff;
   }
 
   private short decodeByteBlob() {
     short startOff = scratchBuf[START_OFFSET];
-    short length = KMByteBlob.cast(startOff).headerLength();
-    length += KMByteBlob.cast(startOff).length();
+    short length = KMByteBlob.cast(buffer(), startOff).headerLength();
+    length += KMByteBlob.cast(buffer(), startOff).length();
     incrementStartOff(length);
     return startOff;
   }
 
+  private short reserveChildIndex(byte kind, short ptr, short count) {
+    // Binary search on canonical maps reads the keys from the child offset index.
+    boolean indexed =
+        (scratchBuf[OPTIONS_OFFSET] & OPT_INDEX_CHILDREN) != 0
+            || ((scratchBuf[OPTIONS_OFFSET] & OPT_CANONICAL) != 0
+                && (kind == MAP_FRAME || kind == KEY_PARAM_FRAME));
+    if (!indexed || !onHeap()) {
+      return KMType.INVALID_VALUE;
+    }
+    return KMRepository.instance().reserveChildIndex(ptr, count);
+  }
+
+  // Records the length of the container which starts at the given offset and ends at the current
+  // offset.
+  private void cacheLength(short startOff) {
+    if ((scratchBuf[OPTIONS_OFFSET] & OPT_CACHE_LENGTHS) != 0 && onHeap()) {
+      KMRepository.instance()
+          .cacheLength(startOff, (short) (scratchBuf[START_OFFSET] - startOff));
+    }
+  }
+
+  // Records the current offset as the start of the child at the given index.
+  private void recordChild(short slot, short index) {
+    if (slot != KMType.INVALID_VALUE) {
+      KMRepository.instance().setChildOffset((short) (slot + index), scratchBuf[START_OFFSET]);
+    }
+  }
+
+  private byte[] buffer() {
+    return (byte[]) bufferRef[BUFFER_REF];
+  }
+
+  // Side tables of the repository are keyed by heap offsets, so they are only kept for items
+  // decoded in place in the heap.
+  private boolean onHeap() {
+    return bufferRef[BUFFER_REF] == KMRepository.instance().getHeap();
+  }
+
   private short readShort() {
-    byte[] buffer = (byte[]) bufferRef[0];
+    byte[] buffer = (byte[]) bufferRef[BUFFER_REF];
     short startOff = scratchBuf[START_OFFSET];
     short val = Util.makeShort(buffer[startOff], buffer[(short) (startOff + 1)]);
     incrementStartOff((short) 2);
@@ -296,7 +1140,7 @@ public class KMDecoder {
 
   private byte readByte() {
     short startOff = scratchBuf[START_OFFSET];
-    byte val = ((byte[]) bufferRef[0])[startOff];
+    byte val = ((byte[]) bufferRef[BUFFER_REF])[startOff];
     incrementStartOff((short) 1);
     return val;
   }
@@ -304,7 +1148,7 @@ public class KMDecoder {
   private void incrementStartOff(short inc) {
     scratchBuf[START_OFFSET] += inc;
     if (scratchBuf[START_OFFSET] > scratchBuf[LEN_OFFSET]) {
-      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      fail(KMError.INVALID_INPUT_LENGTH);
     }
   }
 }
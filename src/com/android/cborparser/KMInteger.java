@@ -43,11 +43,12 @@ public class KMInteger extends KMType {
 
   protected KMInteger() {}
 
-  private static KMInteger proto(short ptr) {
+  private static KMInteger proto(byte[] buffer, short ptr) {
     if (prototype == null) {
       prototype = new KMInteger();
     }
     KMType.instanceTable[KM_INTEGER_OFFSET] = ptr;
+    KMType.bufferTable[KM_INTEGER_OFFSET] = buffer;
     return prototype;
   }
 
@@ -159,8 +160,12 @@ public class KMInteger extends KMType {
   // }
 
   public static KMInteger cast(short ptr) {
-    byte[] heap = repository.getHeap();
-    short majorType = (short) (heap[ptr] & 0x00E0);
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMInteger
+  public static KMInteger cast(byte[] buffer, short ptr) {
+    short majorType = (short) (buffer[ptr] & 0x00E0);
 
     if (majorType != 0) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
@@ -168,7 +173,7 @@ public class KMInteger extends KMType {
     // if (Util.getShort(heap, (short) (ptr + 1)) == INVALID_VALUE) {
     //   ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     // }
-    return proto(ptr);
+    return proto(buffer, ptr);
   }
 
   // create integer and copy byte value
@@ -244,27 +249,12 @@ public class KMInteger extends KMType {
 
   // Get the length of the integer
   public short length() {
-    short val = heap[getBaseOffset()];
-    short addInfo = (short) (val & 0x00FF);
-    if (addInfo  == 27) {
-      return (short) 9;
-    } else if (addInfo == 26) {
-      return (short) 5;
-    } else if (addInfo == 25) {
-      return (short) 3;
-    } else if (addInfo == 24) {
-      return (short) 2;
-    } else if (addInfo <= 23) {
-      return (short) 1;
-    } else {
-      KMException.throwIt(KMError.UNKNOWN_ERROR);
-    }
-    return (short) 0;
+    return headerLength(getBaseOffset());
   }
 
   // Get the buffer pointer in which blob is contained.
   public byte[] getBuffer() {
-    return heap;
+    return (byte[]) KMType.bufferTable[KM_INTEGER_OFFSET];
   }
 
   // Get the start of value
@@ -286,29 +276,38 @@ public class KMInteger extends KMType {
       destOff += (short) (length - srcLen);
     }
 
-    Util.arrayCopyNonAtomic(heap, startOff, dest, destOff, srcLen);
+    Util.arrayCopyNonAtomic(getBuffer(), startOff, dest, destOff, srcLen);
   }
 
   public void setValue(byte[] src, short srcOff) {
-    Util.arrayCopyNonAtomic(src, srcOff, heap, getStartOff(), length());
+    Util.arrayCopyNonAtomic(src, srcOff, getBuffer(), getStartOff(), length());
   }
 
   public short value(byte[] dest, short destOff) {
-    Util.arrayCopyNonAtomic(heap, getStartOff(), dest, destOff, length());
+    Util.arrayCopyNonAtomic(getBuffer(), getStartOff(), dest, destOff, length());
     return length();
   }
 
+  // Copies the bytes of the argument of the integer in little endian order and returns their
+  // number. An argument which is in the initial byte is a single byte.
   public short toLittleEndian(byte[] dest, short destOff) {
-    short index = (short) (length() - 1);
-    while (index >= 0) {
-      dest[destOff++] = heap[(short) (instanceTable[KM_INTEGER_OFFSET] + TLV_HEADER_SIZE + index)];
+    short startOff = getBaseOffset();
+    short length = length();
+    if (length == 1) {
+      dest[destOff] = (byte) (getBuffer()[startOff] & 0x1F);
+      return 1;
+    }
+    length--;
+    short index = length;
+    while (index > 0) {
+      dest[destOff++] = getBuffer()[(short) (startOff + index)];
       index--;
     }
-    return length();
+    return length;
   }
 
   private byte getAddInfo() {
-    return  (byte) (heap[getStartOff()] & 0x1F);
+    return descAddInfo(descriptor(getBuffer()[getStartOff()]));
   }
 
   public short getShort() {
@@ -316,7 +315,7 @@ public class KMInteger extends KMType {
       // Integer is less than SHORT
       return (short) (getByte() & 0x00FF);
     }
-    return Util.getShort(heap, (short) (getStartOff() + length() - UINT_16));
+    return Util.getShort(getBuffer(), (short) (getStartOff() + length() - UINT_16));
   }
 
   public short getSignificantShort() {
@@ -324,7 +323,7 @@ public class KMInteger extends KMType {
       // Integer is less than UINT32
       return (short) 0;
     }
-    return Util.getShort(heap, (short) (getStartOff() + length() - UINT_32));
+    return Util.getShort(getBuffer(), (short) (getStartOff() + length() - UINT_32));
   }
 
   public byte getByte() {
@@ -332,7 +331,7 @@ public class KMInteger extends KMType {
     if (addInfo <= 23) {
       return addInfo;
     }
-    return heap[getStartOff() + length() - UINT_8];
+    return getBuffer()[getStartOff() + length() - UINT_8];
   }
 
   public boolean isZero() {
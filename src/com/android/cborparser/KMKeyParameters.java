@@ -20,6 +20,7 @@ import static com.android.cborparser.KMType.heap;
 
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
 
 /**
@@ -37,18 +38,37 @@ public class KMKeyParameters {
     if (keyParameters == null) {
       keyParameters = new KMKeyParameters(repository);
     }
+    // The repository may be recreated after the singleton, e.g. on reinstall, so the static
+    // helpers always bind to the repository passed last.
+    KMKeyParameters.repository = repository;
+    heap = repository.getHeap();
     return keyParameters;
   }
   private KMKeyParameters(KMRepository rep) {
-    if (repository == null) {
-      repository = rep;
-      heap = repository.getHeap();
-    }
+    tagKeyBuf = JCSystem.makeTransientByteArray(TAG_KEY_SIZE, JCSystem.CLEAR_ON_RESET);
+    tagValues = JCSystem.makeTransientShortArray(MAX_FIND_TAGS, JCSystem.CLEAR_ON_RESET);
+    makeClassTable();
   }
 
+  // Values found by findTags for the internal lookups.
+  private static final byte MAX_FIND_TAGS = 8;
+  private static short[] tagValues;
+
+  // Tag keys are always encoded as uint32 i.e. struct{byte header; short tagType; short tagKey}.
+  private static final byte TAG_KEY_SIZE = 5;
+  private static byte[] tagKeyBuf;
+
   private static final short[] customTags = {
     KMType.ULONG_TAG, KMType.AUTH_TIMEOUT_MILLIS,
   };
+  // Tags from which the custom tags are derived, in the same order as the custom tags.
+  private static final short[] customTagSources = {
+    KMType.UINT_TAG, KMType.AUTH_TIMEOUT,
+  };
+  private static final short[] hiddenTags = {
+    KMType.BYTES_TAG, KMType.APPLICATION_ID,
+    KMType.BYTES_TAG, KMType.APPLICATION_DATA,
+  };
   private static final short[] tagArr = {
     // Unsupported tags.
     KMType.BOOL_TAG, KMType.TRUSTED_USER_PRESENCE_REQUIRED,
@@ -99,6 +119,89 @@ public class KMKeyParameters {
     KMType.UINT_TAG, KMType.MAC_LENGTH,
   };
 
+  // Tag classes. A tag can belong to more than one class.
+  public static final byte SB_ENFORCED = 0x01;
+  public static final byte TEE_ENFORCED = 0x02;
+  public static final byte KEYSTORE_ENFORCED = 0x04;
+  public static final byte INVALID = 0x08;
+  public static final byte UNSUPPORTED = 0x10;
+  public static final byte CUSTOM = 0x20;
+  public static final byte HIDDEN = 0x40;
+
+  // Class table is an open addressing hash table compiled from the tag lists above at install
+  // time. classTableTags holds the (tagType, tagKey) of each entry and classTable the class bits
+  // of the entry. Empty entries have tagType as KMType.INVALID_TAG.
+  private static final short CLASS_TABLE_CAPACITY = 128;
+  private static short[] classTableTags;
+  private static byte[] classTable;
+
+  private static void makeClassTable() {
+    if (classTable != null) {
+      return;
+    }
+    classTableTags = new short[(short) (CLASS_TABLE_CAPACITY * 2)];
+    classTable = new byte[CLASS_TABLE_CAPACITY];
+    addToClassTable(hwEnforcedTagArr, SB_ENFORCED);
+    addToClassTable(teeEnforcedTagsArr, TEE_ENFORCED);
+    addToClassTable(swEnforcedTagsArr, KEYSTORE_ENFORCED);
+    addToClassTable(invalidTagsArr, INVALID);
+    addToClassTable(tagArr, UNSUPPORTED);
+    addToClassTable(customTags, CUSTOM);
+    addToClassTable(hiddenTags, HIDDEN);
+  }
+
+  private static void addToClassTable(short[] tags, byte tagClass) {
+    short index = 0;
+    short slot;
+    while (index < (short) tags.length) {
+      slot = classSlot(tags[index], tags[(short) (index + 1)]);
+      if (classTableTags[(short) (slot * 2)] == KMType.INVALID_TAG) {
+        // Keep the load factor at or below half.
+        if (classTableEntries() >= (short) (CLASS_TABLE_CAPACITY / 2)) {
+          ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        classTableTags[(short) (slot * 2)] = tags[index];
+        classTableTags[(short) (slot * 2 + 1)] = tags[(short) (index + 1)];
+      }
+      classTable[slot] |= tagClass;
+      index += 2;
+    }
+  }
+
+  private static short classTableEntries() {
+    short count = 0;
+    short slot = 0;
+    while (slot < CLASS_TABLE_CAPACITY) {
+      if (classTableTags[(short) (slot * 2)] != KMType.INVALID_TAG) {
+        count++;
+      }
+      slot++;
+    }
+    return count;
+  }
+
+  // Returns the slot of the tag or the empty slot where the tag would be inserted.
+  private static short classSlot(short tagType, short tagKey) {
+    short mask = (short) (CLASS_TABLE_CAPACITY - 1);
+    short slot = (short) (KMTag.hash(tagType, tagKey) & mask);
+    while (true) {
+      if (classTableTags[(short) (slot * 2)] == KMType.INVALID_TAG
+          || (classTableTags[(short) (slot * 2)] == tagType
+              && classTableTags[(short) (slot * 2 + 1)] == tagKey)) {
+        return slot;
+      }
+      slot = (short) ((short) (slot + 1) & mask);
+    }
+  }
+
+  // Returns the class bits of the tag, or 0 if the tag does not belong to any class.
+  public static byte getTagClass(short tagType, short tagKey) {
+    if (tagType == KMType.INVALID_TAG) {
+      return 0;
+    }
+    return classTable[classSlot(tagType, tagKey)];
+  }
+
   private static short exp(short rule) {
     short ptr = KMMap.instance((short) 11);
     KMInteger.uint_16(KMType.RULE);
@@ -106,13 +209,15 @@ public class KMKeyParameters {
     KMInteger.exp(KMType.UINT_TAG); // Key
     KMInteger.exp(); // Value
     KMInteger.exp(KMType.UINT_ARRAY_TAG);
-    KMArray.exp(); // Value
+    KMSchema.arrayOfExp(); // Value
+    KMInteger.exp();
     KMInteger.exp(KMType.ULONG_TAG);
     KMInteger.exp(); // Value
     KMInteger.exp(KMType.DATE_TAG);
     KMInteger.exp(); // Value
     KMInteger.exp(KMType.ULONG_ARRAY_TAG);
-    KMArray.exp(); // Value
+    KMSchema.arrayOfExp(); // Value
+    KMInteger.exp();
     KMInteger.exp(KMType.ENUM_TAG);
     KMInteger.exp(); // Value
     KMInteger.exp(KMType.ENUM_ARRAY_TAG);
@@ -135,41 +240,216 @@ public class KMKeyParameters {
   }
 
   public static short findTag(short tagType, short tagKey, short keyParam) {
-    short length = KMMap.cast(keyParam).length();
-    short keyPtr;
-    short valuePtr = KMTag.INVALID_VALUE;
-    for (short i = 0; i < length; i++) {
-      keyPtr = KMMap.cast(keyParam).getKey(i);
-      if ((tagKey == KMInteger.cast(keyPtr).getShort()) &&
-          (tagType == KMInteger.cast(keyPtr).getSignificantShort())) {
-        valuePtr = KMMap.cast(keyParam).getKeyValue(i);
-        break;
+    return findTag(tagType, tagKey, heap, keyParam);
+  }
+
+  // Finds the value of the tag in key parameters at the given offset in the buffer, e.g. key
+  // parameters decoded in place in the APDU buffer. The tag index and the canonical lookup are
+  // side tables of the repository, so they are only used for key parameters in the heap.
+  public static short findTag(short tagType, short tagKey, byte[] buffer, short keyParam) {
+    if (buffer == heap) {
+      short index = repository.getAttachment(keyParam, KMRepository.TAG_INDEX);
+      if (index != KMType.INVALID_VALUE) {
+        return findTagInIndex(tagType, tagKey, index);
+      }
+    }
+    KMMap map = KMMap.cast(buffer, keyParam);
+    if (map.isCanonical()) {
+      tagKeyBuf[0] = (byte) (KMType.MAJOR_TYPE_INT | 0x1A);
+      Util.setShort(tagKeyBuf, (short) 1, tagType);
+      Util.setShort(tagKeyBuf, (short) 3, tagKey);
+      return map.findValue(tagKeyBuf, (short) 0, TAG_KEY_SIZE);
+    }
+    short keyPtr = (short) (keyParam + map.headerLength());
+    short valuePtr;
+    short length = map.length();
+    while (length > 0) {
+      valuePtr = map.next(keyPtr);
+      if (isTagKey(buffer, keyPtr)
+          && (tagKey == KMInteger.cast(buffer, keyPtr).getShort())
+          && (tagType == KMInteger.cast(buffer, keyPtr).getSignificantShort())) {
+        return valuePtr;
+      }
+      keyPtr = map.next(valuePtr);
+      length--;
+    }
+    return KMTag.INVALID_VALUE;
+  }
+
+  // Finds the values of several tags in a single pass over the key parameters. The tags array
+  // holds (tagType, tagKey) pairs and the offset of the value of each tag, or KMType.INVALID_VALUE
+  // if the tag is absent, is stored in the values array at the index of the pair. Returns the
+  // number of tags found.
+  public static short findTags(short[] tags, short keyParam, short[] values) {
+    return findTags(tags, heap, keyParam, values);
+  }
+
+  // Same as findTags for key parameters at the given offset in the buffer.
+  public static short findTags(short[] tags, byte[] buffer, short keyParam, short[] values) {
+    short count = (short) (tags.length / 2);
+    if ((short) values.length < count) {
+      ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+    }
+    short index = 0;
+    short found = 0;
+    while (index < count) {
+      values[index] = KMType.INVALID_VALUE;
+      index++;
+    }
+    // With a tag index each lookup is a single probe.
+    if (buffer == heap
+        && repository.getAttachment(keyParam, KMRepository.TAG_INDEX) != KMType.INVALID_VALUE) {
+      index = 0;
+      while (index < count) {
+        values[index] =
+            findTag(tags[(short) (index * 2)], tags[(short) (index * 2 + 1)], keyParam);
+        if (values[index] != KMType.INVALID_VALUE) {
+          found++;
+        }
+        index++;
+      }
+      return found;
+    }
+    KMMap map = KMMap.cast(buffer, keyParam);
+    short keyPtr = (short) (keyParam + map.headerLength());
+    short valuePtr;
+    short length = map.length();
+    short tagType;
+    short tagKey;
+    while (found < count && length > 0) {
+      valuePtr = map.next(keyPtr);
+      if (isTagKey(buffer, keyPtr)) {
+        tagType = KMInteger.cast(buffer, keyPtr).getSignificantShort();
+        tagKey = KMInteger.cast(buffer, keyPtr).getShort();
+        index = 0;
+        while (index < count) {
+          // First occurrence of a tag wins, same as findTag.
+          if (values[index] == KMType.INVALID_VALUE
+              && tags[(short) (index * 2)] == tagType
+              && tags[(short) (index * 2 + 1)] == tagKey) {
+            values[index] = valuePtr;
+            found++;
+          }
+          index++;
+        }
+      }
+      keyPtr = map.next(valuePtr);
+      length--;
+    }
+    return found;
+  }
+
+  // Tag index is an open addressing hash table allocated in the heap and attached to the key
+  // parameter map. struct{short capacity; entry[capacity]} where each entry is struct{short
+  // tagType; short tagKey; short valuePtr}. Empty entries have tagType as KMType.INVALID_TAG.
+  private static final byte TAG_INDEX_ENTRY_SIZE = 6;
+  private static final byte TAG_INDEX_MIN_CAPACITY = 8;
+
+  // Builds the tag index of the key parameter map. Returns the offset of the index or
+  // KMType.INVALID_VALUE if it cannot be attached, in which case no heap is used.
+  public static short makeTagIndex(short keyParamsPtr) {
+    short length = KMMap.cast(keyParamsPtr).length();
+    // Keep the load factor at or below half.
+    short capacity = TAG_INDEX_MIN_CAPACITY;
+    while (capacity < (short) (length * 2)) {
+      capacity = (short) (capacity * 2);
+    }
+    short size = (short) (capacity * TAG_INDEX_ENTRY_SIZE + 2);
+    short index = repository.alloc(size);
+    Util.arrayFillNonAtomic(heap, index, size, (byte) 0);
+    Util.setShort(heap, index, capacity);
+    short keyPtr = (short) (keyParamsPtr + KMMap.cast(keyParamsPtr).headerLength());
+    short valuePtr;
+    short tagType;
+    short tagKey;
+    short entry;
+    while (length > 0) {
+      valuePtr = KMMap.cast(keyParamsPtr).next(keyPtr);
+      tagType = KMInteger.cast(keyPtr).getSignificantShort();
+      tagKey = KMInteger.cast(keyPtr).getShort();
+      entry = probe(index, capacity, tagType, tagKey);
+      // First occurrence of the tag wins, same as a linear search.
+      if (Util.getShort(heap, entry) == KMType.INVALID_TAG) {
+        Util.setShort(heap, entry, tagType);
+        Util.setShort(heap, (short) (entry + 2), tagKey);
+        Util.setShort(heap, (short) (entry + 4), valuePtr);
+      }
+      keyPtr = KMMap.cast(keyParamsPtr).next(valuePtr);
+      length--;
+    }
+    if (!repository.attach(keyParamsPtr, KMRepository.TAG_INDEX, index)) {
+      // The attachment table is full, so findTag keeps searching the map linearly.
+      repository.setHeapIndex(index);
+      return KMType.INVALID_VALUE;
+    }
+    return index;
+  }
+
+  // Returns the entry of the tag or the empty entry where the tag would be inserted.
+  private static short probe(short index, short capacity, short tagType, short tagKey) {
+    short mask = (short) (capacity - 1);
+    short slot = (short) (KMTag.hash(tagType, tagKey) & mask);
+    short entry;
+    while (true) {
+      entry = (short) (index + 2 + (short) (slot * TAG_INDEX_ENTRY_SIZE));
+      if (Util.getShort(heap, entry) == KMType.INVALID_TAG
+          || (Util.getShort(heap, entry) == tagType
+              && Util.getShort(heap, (short) (entry + 2)) == tagKey)) {
+        return entry;
       }
+      slot = (short) ((short) (slot + 1) & mask);
+    }
+  }
+
+  private static short findTagInIndex(short tagType, short tagKey, short index) {
+    if (tagType == KMType.INVALID_TAG) {
+      return KMType.INVALID_VALUE;
+    }
+    short entry = probe(index, Util.getShort(heap, index), tagType, tagKey);
+    if (Util.getShort(heap, entry) == KMType.INVALID_TAG) {
+      return KMType.INVALID_VALUE;
+    }
+    return Util.getShort(heap, (short) (entry + 4));
+  }
+
+  // Keys of key parameters are unsigned integers. Keys are checked before KMInteger.cast, which
+  // throws on other major types, so that lookups skip other keys and the key parameters are
+  // rejected with a KMException.
+  private static boolean isTagKey(short keyPtr) {
+    return isTagKey(heap, keyPtr);
+  }
+
+  private static boolean isTagKey(byte[] buffer, short keyPtr) {
+    return KMType.getMajorType(buffer, keyPtr) == KMType.MAJOR_TYPE_INT;
+  }
+
+  // Rejects the key parameters if the key is not the key of a valid tag.
+  private static void checkTag(short tagPtr) {
+    if (!isTagKey(tagPtr)
+        || !isValidTag(
+            KMInteger.cast(tagPtr).getSignificantShort(), KMInteger.cast(tagPtr).getShort())) {
+      KMException.throwIt(KMError.INVALID_KEY_BLOB);
     }
-    return valuePtr;
   }
 
   public static boolean hasUnsupportedTags(short keyParamsPtr) {
-    byte index = 0;
-    short tagInd;
     short tagPtr;
     short tagKey;
     short tagType;
-    short len = KMMap.cast(keyParamsPtr).length();
-    while (index < len) {
-      tagInd = 0;
-      tagKey = KMMap.cast(keyParamsPtr).getKey(index);
-      tagKey = KMInteger.cast(tagKey).getShort();
-      tagType = KMInteger.cast(tagKey).getSignificantShort();
-      while (tagInd < (short) tagArr.length) {
-        if ((tagArr[tagInd] == tagType) && (tagArr[(short) (tagInd + 1)] == tagKey)) {
-          return true;
-        }
-        tagInd += 2;
+    boolean unsupported = false;
+    short length = KMMap.cast(keyParamsPtr).length();
+    tagPtr = (short) (keyParamsPtr + KMMap.cast(keyParamsPtr).headerLength());
+    while (!unsupported && length > 0) {
+      unsupported = !isTagKey(tagPtr);
+      if (!unsupported) {
+        tagKey = KMInteger.cast(tagPtr).getShort();
+        tagType = KMInteger.cast(tagPtr).getSignificantShort();
+        unsupported = (getTagClass(tagType, tagKey) & UNSUPPORTED) != 0;
       }
-      index++;
+      tagPtr = KMCursor.end(KMCursor.end(tagPtr));
+      length--;
     }
-    return false;
+    return unsupported;
   }
 
   // KDF, ECIES_SINGLE_HASH_MODE missing from types.hal
@@ -181,10 +461,23 @@ public class KMKeyParameters {
       short vendorPatchObjPtr,
       short bootPatchObjPtr,
       byte[] scratchPad) {
-    short len = makeKeyParameters(hwEnforcedTagArr, keyParamsPtr, scratchPad);
-    short mapPtr = KMMap.instance((short) (len + 5));
+    short len = makeKeyParameters(SB_ENFORCED, keyParamsPtr, scratchPad);
+    short mapPtr = KMMap.instance((short) (len + SB_PROPERTIES_COUNT));
     copyKeyParamters(scratchPad, mapPtr, len);
-    //short mapPtr = moveKeyParamters(hwEnforcedTagArr, keyParamsPtr, scratchPad);
+    //short mapPtr = moveKeyParamters(SB_ENFORCED, keyParamsPtr, scratchPad);
+    addSbProperties(origin, osVersionObjPtr, osPatchObjPtr, vendorPatchObjPtr, bootPatchObjPtr);
+    return mapPtr;
+  }
+
+  // Number of the entries added by addSbProperties.
+  private static final byte SB_PROPERTIES_COUNT = 5;
+
+  private static void addSbProperties(
+      byte origin,
+      short osVersionObjPtr,
+      short osPatchObjPtr,
+      short vendorPatchObjPtr,
+      short bootPatchObjPtr) {
     // Add Origin
     KMInteger.instance(KMType.ENUM_TAG, KMType.ORIGIN); // Key
     KMInteger.uint_8(origin); // Value
@@ -209,7 +502,110 @@ public class KMKeyParameters {
     KMInteger.instance(KMByteBlob.cast(bootPatchObjPtr).getBuffer(),
         KMByteBlob.cast(bootPatchObjPtr).getStartOff(),
         KMByteBlob.cast(bootPatchObjPtr).length()); // Value
-    return mapPtr;
+  }
+
+  // Key characteristics are struct{sbEnforced; teeEnforced; keystoreEnforced; hidden} i.e. an
+  // array of four maps.
+  public static final byte KEY_CHARS_SB_ENFORCED = 0;
+  public static final byte KEY_CHARS_TEE_ENFORCED = 1;
+  public static final byte KEY_CHARS_KEYSTORE_ENFORCED = 2;
+  public static final byte KEY_CHARS_HIDDEN = 3;
+  private static final byte KEY_CHARS_SIZE = 4;
+  // Partition entries are recorded in the scratch pad as struct{byte tagClass; short entryPtr;
+  // short entryLength} where the entry is the key followed by the value.
+  private static final byte PARTITION_ENTRY_SIZE = 5;
+  private static final byte PARTITION_CLASSES = SB_ENFORCED | TEE_ENFORCED | KEYSTORE_ENFORCED;
+
+  // Builds the key characteristics with a single pass over the key parameters. Each entry is
+  // classified and recorded in the scratch pad, so every map is allocated with its exact length.
+  public static short makeKeyCharacteristics(
+      short keyParamsPtr,
+      byte origin,
+      short osVersionObjPtr,
+      short osPatchObjPtr,
+      short vendorPatchObjPtr,
+      short bootPatchObjPtr,
+      short rootOfTrustBlob,
+      byte[] scratchPad) {
+    short tagPtr;
+    short tagKey;
+    short tagType;
+    short tagValue;
+    byte tagClass;
+    short offset = 0;
+    short sbCount = 0;
+    short teeCount = 0;
+    short keystoreCount = 0;
+    short appId = KMType.INVALID_VALUE;
+    short appData = KMType.INVALID_VALUE;
+    short length = KMMap.cast(keyParamsPtr).length();
+    tagPtr = (short) (keyParamsPtr + KMMap.cast(keyParamsPtr).headerLength());
+    while (length > 0) {
+      tagValue = KMCursor.end(tagPtr);
+      checkTag(tagPtr);
+      tagKey = KMInteger.cast(tagPtr).getShort();
+      tagType = KMInteger.cast(tagPtr).getSignificantShort();
+      tagClass = getTagClass(tagType, tagKey);
+      if ((tagClass & HIDDEN) != 0) {
+        // First occurrence of the tag wins, same as findTag.
+        if (tagKey == KMType.APPLICATION_ID && appId == KMType.INVALID_VALUE) {
+          appId = tagValue;
+        } else if (tagKey == KMType.APPLICATION_DATA && appData == KMType.INVALID_VALUE) {
+          appData = tagValue;
+        }
+      }
+      tagClass &= PARTITION_CLASSES;
+      if (tagClass != 0) {
+        scratchPad[offset] = tagClass;
+        Util.setShort(scratchPad, (short) (offset + 1), tagPtr);
+        Util.setShort(scratchPad, (short) (offset + 3),
+            (short) (getTotalLength(tagPtr) + getTotalLength(tagValue)));
+        offset += PARTITION_ENTRY_SIZE;
+        if ((tagClass & SB_ENFORCED) != 0) {
+          sbCount++;
+        }
+        if ((tagClass & TEE_ENFORCED) != 0) {
+          teeCount++;
+        }
+        if ((tagClass & KEYSTORE_ENFORCED) != 0) {
+          keystoreCount++;
+        }
+      }
+      tagPtr = KMCursor.end(tagValue);
+      length--;
+    }
+    if (appId != KMType.INVALID_VALUE && KMByteBlob.cast(appId).length() == 0) {
+      appId = KMType.INVALID_VALUE;
+    }
+    if (appData != KMType.INVALID_VALUE && KMByteBlob.cast(appData).length() == 0) {
+      appData = KMType.INVALID_VALUE;
+    }
+    short keyChars = KMArray.instance(KEY_CHARS_SIZE);
+    KMMap.instance((short) (sbCount + SB_PROPERTIES_COUNT));
+    copyPartition(SB_ENFORCED, scratchPad, offset);
+    addSbProperties(origin, osVersionObjPtr, osPatchObjPtr, vendorPatchObjPtr, bootPatchObjPtr);
+    KMMap.instance(teeCount);
+    copyPartition(TEE_ENFORCED, scratchPad, offset);
+    KMMap.instance(keystoreCount);
+    copyPartition(KEYSTORE_ENFORCED, scratchPad, offset);
+    makeHidden(appId, appData, rootOfTrustBlob, scratchPad);
+    return keyChars;
+  }
+
+  // Appends the recorded entries of the given class to the heap.
+  private static void copyPartition(byte tagClass, byte[] scratchPad, short end) {
+    short offset = 0;
+    short length;
+    short destPtr;
+    while (offset < end) {
+      if ((scratchPad[offset] & tagClass) != 0) {
+        length = Util.getShort(scratchPad, (short) (offset + 3));
+        destPtr = repository.alloc(length);
+        Util.arrayCopyNonAtomic(
+            heap, Util.getShort(scratchPad, (short) (offset + 1)), heap, destPtr, length);
+      }
+      offset += PARTITION_ENTRY_SIZE;
+    }
   }
 
   public static short makeHwEnforced(short sb, short tee) {
@@ -251,118 +647,96 @@ public class KMKeyParameters {
     // return KMKeyParameters.instance(hwEnf);
   }
 
-  public static short moveKeyParamters(short[] enforcedList, short keyParamsPtr, byte[] scratchPad) {
-    // TODO THis will not work due to the fact that the pointers are changing.
-    byte index = 0;
-    short tagInd;
-    short arrInd = 0;
+  public static short moveKeyParamters(byte tagClass, short keyParamsPtr, byte[] scratchPad) {
     short tagPtr;
     short tagKey;
     short tagType;
     short mapLen = 0;
     boolean found = false;
     short maptr = KMMap.instance((short) 255); // Allocate max possible size.
-    print(repository.getHeap(), keyParamsPtr, (short) (KMMap.cast(keyParamsPtr).headerLength() +
-        KMMap.cast(keyParamsPtr).contentLength()));
     short tagValue;
-    while (index < KMMap.cast(keyParamsPtr).length()) {
-      tagInd = 0;
+    short remaining = KMMap.cast(keyParamsPtr).length();
+    short headerLength = KMMap.cast(keyParamsPtr).headerLength();
+    // The matching entries are moved to the end of the heap i.e. into the new map. The following
+    // entries of the key parameters take their place, so the offset stays where it is.
+    short length = remaining;
+    tagPtr = (short) (keyParamsPtr + headerLength);
+    while (length > 0) {
       found = false;
-      tagPtr = KMMap.cast(keyParamsPtr).getKey(index);
-      tagValue = KMMap.cast(keyParamsPtr).getKeyValue(index);
+      tagValue = KMCursor.end(tagPtr);
+      checkTag(tagPtr);
       tagKey = KMInteger.cast(tagPtr).getShort();
       tagType = KMInteger.cast(tagPtr).getSignificantShort();
-      if (!isValidTag(tagType, tagKey)) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      if ((getTagClass(tagType, tagKey) & tagClass) != 0) {
+        short totalLength = (short) (getTotalLength(tagPtr) + getTotalLength(tagValue));
+        repository.move(tagPtr, totalLength,
+            scratchPad, (short) 0);
+        maptr -= totalLength;
+        found = true;
+        mapLen++;
+        remaining--;
       }
-      while (tagInd < (short) enforcedList.length) {
-        if ((enforcedList[tagInd] == tagType)
-            && (enforcedList[(short) (tagInd + 1)] == tagKey)) {
-          short totalLength = (short) (getTotalLength(tagPtr) + getTotalLength(tagValue));
-          repository.move(tagPtr, totalLength,
-              scratchPad, (short) 0);
-          maptr -= totalLength;
-          //repository.move(tagValue, getTotalLength(tagValue), scratchPad, (short) 0);
-          KMMap.cast(keyParamsPtr).updateLength((short) (KMMap.cast(keyParamsPtr).length() - 1),
-              scratchPad, (short) 0);
-          print(repository.getHeap(), keyParamsPtr, (short) (KMMap.cast(keyParamsPtr).headerLength() +
-              KMMap.cast(keyParamsPtr).contentLength()));
-          System.out.println(" copied to buffer:");
-          print(repository.getHeap(), maptr, (short) (repository.getHeapIndex() - maptr));
-          found = true;
-          mapLen++;
-          // Util.setShort(scratchPad, arrInd, tagPtr);
-          // arrInd += 2;
-          // Util.setShort(scratchPad, arrInd, tagValue);
-          // arrInd += 2;
-          break;
-        }
-        tagInd += 2;
+      if (!found) {
+        tagPtr = KMCursor.end(tagValue);
       }
-      if (!found) index++;
+      length--;
     }
+    KMMap.cast(keyParamsPtr).updateLength(remaining, scratchPad, (short) 0);
+    // The map header shrinks when the length drops below 24, which shifts the new map as well.
+    maptr -= (short) (headerLength - KMMap.cast(keyParamsPtr).headerLength());
     KMMap.cast(maptr).updateLength(mapLen, scratchPad, (short) 0);
     return maptr;
   }
 
-  public static short makeKeyParameters(short[] enforcedList, short keyParamsPtr, byte[] scratchPad) {
-    byte index = 0;
-    short tagInd;
+  public static short makeKeyParameters(byte tagClass, short keyParamsPtr, byte[] scratchPad) {
     short arrInd = 0;
     short tagPtr;
     short tagKey;
     short tagType;
-    short len = KMMap.cast(keyParamsPtr).length();
     short tagValue;
-    while (index < len) {
-      tagInd = 0;
-      tagPtr = KMMap.cast(keyParamsPtr).getKey(index);
-      tagValue = KMMap.cast(keyParamsPtr).getKeyValue(index);
+    short length = KMMap.cast(keyParamsPtr).length();
+    tagPtr = (short) (keyParamsPtr + KMMap.cast(keyParamsPtr).headerLength());
+    while (length > 0) {
+      tagValue = KMCursor.end(tagPtr);
+      checkTag(tagPtr);
       tagKey = KMInteger.cast(tagPtr).getShort();
       tagType = KMInteger.cast(tagPtr).getSignificantShort();
-      if (!isValidTag(tagType, tagKey)) {
-        KMException.throwIt(KMError.INVALID_KEY_BLOB);
+      if ((getTagClass(tagType, tagKey) & tagClass) != 0) {
+        Util.setShort(scratchPad, arrInd, tagPtr);
+        arrInd += 2;
+        Util.setShort(scratchPad, arrInd, tagValue);
+        arrInd += 2;
       }
-      while (tagInd < (short) enforcedList.length) {
-        if ((enforcedList[tagInd] == tagType)
-            && (enforcedList[(short) (tagInd + 1)] == tagKey)) {
-          Util.setShort(scratchPad, arrInd, tagPtr);
-          arrInd += 2;
-          Util.setShort(scratchPad, arrInd, tagValue);
-          arrInd += 2;
-          break;
-        }
-        tagInd += 2;
-      }
-      index++;
+      tagPtr = KMCursor.end(tagValue);
+      length--;
     }
     return (short) (arrInd / 4);
   }
 
   // ALL_USERS, EXPORTABLE missing from types.hal
   public static short makeKeystoreEnforced(short keyParamsPtr, byte[] scratchPad) {
-    short len = makeKeyParameters(swEnforcedTagsArr, keyParamsPtr, scratchPad);
+    short len = makeKeyParameters(KEYSTORE_ENFORCED, keyParamsPtr, scratchPad);
     short mapPtr = KMMap.instance(len);
     copyKeyParamters(scratchPad, mapPtr, len);
     return mapPtr;
   }
 
   public static short makeTeeEnforced(short keyParamsPtr, byte[] scratchPad) {
-    short len = makeKeyParameters(teeEnforcedTagsArr, keyParamsPtr, scratchPad);
+    short len = makeKeyParameters(TEE_ENFORCED, keyParamsPtr, scratchPad);
     short mapPtr = KMMap.instance(len);
     copyKeyParamters(scratchPad, mapPtr, len);
     return mapPtr;
   }
 
   public static short makeHidden(short keyParamsPtr, short rootOfTrustBlob, byte[] scratchPad) {
-    short appId = KMKeyParameters.findTag(KMType.BYTES_TAG, KMType.APPLICATION_ID, keyParamsPtr);
+    findTags(hiddenTags, keyParamsPtr, tagValues);
+    short appId = tagValues[0];
     if (appId != KMTag.INVALID_VALUE) {
       if (KMByteBlob.cast(appId).length() == 0) {
         appId = KMTag.INVALID_VALUE;
       }
     }
-    short appData =
-        KMKeyParameters.findTag(KMType.BYTES_TAG, KMType.APPLICATION_DATA, keyParamsPtr);
+    short appData = tagValues[1];
     if (appData != KMTag.INVALID_VALUE) {
       if (KMByteBlob.cast(appData).length() == 0) {
         appData = KMTag.INVALID_VALUE;
@@ -373,38 +747,43 @@ public class KMKeyParameters {
 
   public static short makeHidden(
       short appIdBlob, short appDataBlob, short rootOfTrustBlob, byte[] scratchPad) {
-    // Order in which the hidden array is created should not change.
-    short index = 0;
+    // Order in which the hidden map is created should not change.
+    short length = 1;
     KMByteBlob.cast(rootOfTrustBlob);
-    Util.setShort(scratchPad, index, rootOfTrustBlob);
-    index += 2;
     if (appIdBlob != KMTag.INVALID_VALUE) {
       KMByteBlob.cast(appIdBlob);
-      Util.setShort(scratchPad, index, appIdBlob);
-      index += 2;
+      length++;
     }
     if (appDataBlob != KMTag.INVALID_VALUE) {
       KMByteBlob.cast(appDataBlob);
-      Util.setShort(scratchPad, index, appDataBlob);
-      index += 2;
+      length++;
+    }
+    short map = KMMap.instance(length);
+    KMInteger.instance(KMType.BYTES_TAG, KMType.ROOT_OF_TRUST); // Key
+    copyItem(rootOfTrustBlob); // Value
+    if (appIdBlob != KMTag.INVALID_VALUE) {
+      KMInteger.instance(KMType.BYTES_TAG, KMType.APPLICATION_ID); // Key
+      copyItem(appIdBlob); // Value
+    }
+    if (appDataBlob != KMTag.INVALID_VALUE) {
+      KMInteger.instance(KMType.BYTES_TAG, KMType.APPLICATION_DATA); // Key
+      copyItem(appDataBlob); // Value
     }
-    short map = KMMap.instance((short) (index / 2));
-    copyKeyParamters(scratchPad, map, (short) (index / 2));
     return map;
   }
 
+  // Appends a copy of the item to the heap.
+  private static void copyItem(short ptr) {
+    short length = getTotalLength(ptr);
+    short destPtr = repository.alloc(length);
+    Util.arrayCopyNonAtomic(heap, ptr, heap, destPtr, length);
+  }
+
   public static boolean isValidTag(short tagType, short tagKey) {
-    short index = 0;
     if (tagKey == KMType.INVALID_TAG) {
       return false;
     }
-    while (index < invalidTagsArr.length) {
-      if ((tagType == invalidTagsArr[index]) && (tagKey == invalidTagsArr[(short) (index + 1)])) {
-        return false;
-      }
-      index += 2;
-    }
-    return true;
+    return (getTagClass(tagType, tagKey) & INVALID) == 0;
   }
 
   private static short getTotalLength(short ptr) {
@@ -454,14 +833,14 @@ public class KMKeyParameters {
     short tagKey;
     short offset = 0;
     short len = (short) customTags.length;
-    short map = KMMap.instance((short) (len / 2));
+    // Look up all the source tags at once; only the custom tags which can be derived are added.
+    short map = KMMap.instance(findTags(customTagSources, keyParams, tagValues));
     short tagType;
     while (index < len) {
       tagType = customTags[(short) (index + 1)];
       switch (tagType) {
         case KMType.AUTH_TIMEOUT_MILLIS:
-          short authTimeOutTag =
-              KMKeyParameters.findTag(KMType.UINT_TAG, KMType.AUTH_TIMEOUT, keyParams);
+          short authTimeOutTag = tagValues[(short) (index / 2)];
           if (authTimeOutTag != KMType.INVALID_VALUE) {
             KMInteger.instance(KMType.ULONG_TAG, KMType.AUTH_TIMEOUT_MILLIS); // Key
             tagPtr = createAuthTimeOutMillisTag(authTimeOutTag, scratchPad, offset); // Value
@@ -530,11 +909,4 @@ public class KMKeyParameters {
     // }
     // return ret;
   //}
-  private static void print(byte[] buf, short start, short length) {
-    StringBuilder sb = new StringBuilder();
-    for (int i = start; i < (start + length); i++) {
-      sb.append(String.format(" 0x%02X", buf[i]));
-    }
-    System.out.println(sb.toString());
-  }
 }
@@ -36,11 +36,12 @@ public class KMMap extends KMType {
 
   private KMMap() {}
 
-  private static KMMap proto(short ptr) {
+  private static KMMap proto(byte[] buffer, short ptr) {
     if (prototype == null) {
       prototype = new KMMap();
     }
     instanceTable[KM_MAP_OFFSET] = ptr;
+    bufferTable[KM_MAP_OFFSET] = buffer;
     return prototype;
   }
 
@@ -82,7 +83,11 @@ public class KMMap extends KMType {
   }
 
   public void updateLength(short length, byte[] scratchPad, short offset) {
+    assertHeap();
     short start = instanceTable[KM_MAP_OFFSET];
+    // Offsets and lengths recorded for this map, its parents and the heap which follows it are no
+    // longer valid.
+    repository.releaseSideTables(start, repository.getHeapIndex());
     short origLen = length();
     if (origLen > 23) {
       if (length > 23) {
@@ -106,13 +111,17 @@ public class KMMap extends KMType {
   // }
 
   public static KMMap cast(short ptr) {
-    byte[] heap = repository.getHeap();
-    byte majorType = (byte) (heap[ptr] & 0x00E0);
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMMap
+  public static KMMap cast(byte[] buffer, short ptr) {
+    byte majorType = (byte) (buffer[ptr] & 0x00E0);
 
     if (majorType != MAP_MAJOR_TYPE) {
       ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
     }
-    return proto(ptr);
+    return proto(buffer, ptr);
   }
 
   public void add(short index, short keyPtr, short valPtr) {
@@ -223,7 +232,14 @@ public class KMMap extends KMType {
   }
 
   public short getKeyValue(short index) {
-    return next(get(KMType.instanceTable[KM_MAP_OFFSET], headerLength(), length(), index));
+    short ptr = KMType.instanceTable[KM_MAP_OFFSET];
+    if (getBuffer() == heap && index >= 0 && index < length()) {
+      short valuePtr = repository.getChildOffset(ptr, (short) (index * 2 + 1));
+      if (valuePtr != KMType.INVALID_VALUE) {
+        return valuePtr;
+      }
+    }
+    return next(get(ptr, headerLength(), length(), index));
     // short len = length();
     // if (index >= len) {
     //   ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
@@ -240,77 +256,132 @@ public class KMMap extends KMType {
     if (index1 >= len || index2 >= len) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    // Swap keys
-    short indexPtr1 =
-        Util.getShort(
-            heap,
-            (short)
-                (instanceTable[KM_MAP_OFFSET]
-                    + TLV_HEADER_SIZE
-                    + MAP_HEADER_SIZE
-                    + (short) (index1 * 4)));
-    short indexPtr2 =
-        Util.getShort(
-            heap,
-            (short)
-                (instanceTable[KM_MAP_OFFSET]
-                    + TLV_HEADER_SIZE
-                    + MAP_HEADER_SIZE
-                    + (short) (index2 * 4)));
-    Util.setShort(
-        heap,
-        (short)
-            (instanceTable[KM_MAP_OFFSET]
-                + TLV_HEADER_SIZE
-                + MAP_HEADER_SIZE
-                + (short) (index1 * 4)),
-        indexPtr2);
-    Util.setShort(
-        heap,
-        (short)
-            (instanceTable[KM_MAP_OFFSET]
-                + TLV_HEADER_SIZE
-                + MAP_HEADER_SIZE
-                + (short) (index2 * 4)),
-        indexPtr1);
-
-    // Swap Values
-    indexPtr1 =
-        Util.getShort(
-            heap,
-            (short)
-                (instanceTable[KM_MAP_OFFSET]
-                    + TLV_HEADER_SIZE
-                    + MAP_HEADER_SIZE
-                    + (short) (index1 * 4 + 2)));
-    indexPtr2 =
-        Util.getShort(
-            heap,
-            (short)
-                (instanceTable[KM_MAP_OFFSET]
-                    + TLV_HEADER_SIZE
-                    + MAP_HEADER_SIZE
-                    + (short) (index2 * 4 + 2)));
-    Util.setShort(
-        heap,
-        (short)
-            (instanceTable[KM_MAP_OFFSET]
-                + TLV_HEADER_SIZE
-                + MAP_HEADER_SIZE
-                + (short) (index1 * 4 + 2)),
-        indexPtr2);
-    Util.setShort(
-        heap,
-        (short)
-            (instanceTable[KM_MAP_OFFSET]
-                + TLV_HEADER_SIZE
-                + MAP_HEADER_SIZE
-                + (short) (index2 * 4 + 2)),
-        indexPtr1);
+    if (index1 == index2) {
+      return;
+    }
+    if (index1 > index2) {
+      short tmp = index1;
+      index1 = index2;
+      index2 = tmp;
+    }
+    assertHeap();
+    short ptr = instanceTable[KM_MAP_OFFSET];
+    short start1 = getKey(index1);
+    short start2 = KMMap.cast(ptr).getKey(index2);
+    short end1 = next(next(start1));
+    short end2 = next(next(start2));
+    // Entries are variable length, so the inline encoding E1 M E2 is rotated into M E2 E1 and then
+    // into E2 M E1.
+    repository.releaseSideTables(start1, end2);
+    repository.rotate(start1, end1, end2);
+    short middleEnd = (short) (start1 + (short) (start2 - end1));
+    repository.rotate(start1, middleEnd, (short) (middleEnd + (short) (end2 - start2)));
+    instanceTable[KM_MAP_OFFSET] = ptr;
   }
 
+  // Sorts the entries in place in the canonical order i.e. RFC 8949 length-first order of the
+  // encoded keys, and marks the map as canonical so that keys can be looked up using a binary
+  // search.
   public void canonicalize() {
-    //KMCoseMap.canonicalize(instanceTable[KM_MAP_OFFSET], length());
+    assertHeap();
+    short ptr = instanceTable[KM_MAP_OFFSET];
+    short length = length();
+    short first = (short) (ptr + headerLength());
+    short sortedEnd = first;
+    short entryEnd;
+    short pos;
+    // Offsets of the entries change while sorting.
+    repository.releaseSideTables(ptr, next(ptr));
+    // Insertion sort, each entry is rotated into its place in the sorted prefix.
+    for (short i = 0; i < length; i++) {
+      entryEnd = next(next(sortedEnd));
+      pos = first;
+      while (pos < sortedEnd && compareKeys(pos, sortedEnd) <= 0) {
+        pos = next(next(pos));
+      }
+      if (pos != sortedEnd) {
+        repository.rotate(pos, sortedEnd, entryEnd);
+        repository.clearLengthCache(pos, entryEnd);
+      }
+      sortedEnd = entryEnd;
+    }
+    // Index the sorted entries so that binary search has random access to the keys.
+    short slot = repository.reserveChildIndex(ptr, (short) (length * 2));
+    if (slot != KMType.INVALID_VALUE) {
+      pos = first;
+      for (short i = 0; i < length; i++) {
+        repository.setChildOffset(slot, pos);
+        pos = next(pos);
+        repository.setChildOffset((short) (slot + 1), pos);
+        pos = next(pos);
+        slot += 2;
+      }
+    }
+    repository.attach(ptr, KMRepository.CANONICAL, (short) 0);
+    instanceTable[KM_MAP_OFFSET] = ptr;
+  }
+
+  public boolean isCanonical() {
+    return getBuffer() == heap
+        && repository.getAttachment(instanceTable[KM_MAP_OFFSET], KMRepository.CANONICAL)
+            != KMType.INVALID_VALUE;
+  }
+
+  // Compares the keys at the given offsets in the canonical order.
+  private short compareKeys(short key1, short key2) {
+    return compareKey(key1, getBuffer(), key2, (short) (next(key2) - key2));
+  }
+
+  // Compares the encoded key at the given offset with the given encoded key in the canonical
+  // order i.e. shorter keys sort first and keys of the same length sort bytewise.
+  private short compareKey(short keyPtr, byte[] key, short keyOff, short keyLen) {
+    short len = (short) (next(keyPtr) - keyPtr);
+    if (len != keyLen) {
+      return (short) ((len < keyLen) ? -1 : 1);
+    }
+    return KMInteger.unsignedByteArrayCompare(getBuffer(), keyPtr, key, keyOff, len);
+  }
+
+  // Returns the value of the entry with the given encoded key or KMType.INVALID_VALUE if there is
+  // no such entry. Canonical maps are searched using binary search, others linearly.
+  public short findValue(byte[] key, short keyOff, short keyLen) {
+    short ptr = instanceTable[KM_MAP_OFFSET];
+    short length = length();
+    short keyPtr;
+    short result;
+    if (isCanonical() && repository.getChildOffset(ptr, (short) 0) != KMType.INVALID_VALUE) {
+      short low = 0;
+      short high = (short) (length - 1);
+      short mid;
+      while (low <= high) {
+        mid = (short) ((short) (low + high) >> 1);
+        keyPtr = repository.getChildOffset(ptr, (short) (mid * 2));
+        result = compareKey(keyPtr, key, keyOff, keyLen);
+        if (result == 0) {
+          return repository.getChildOffset(ptr, (short) (mid * 2 + 1));
+        } else if (result < 0) {
+          low = (short) (mid + 1);
+        } else {
+          high = (short) (mid - 1);
+        }
+      }
+      return KMType.INVALID_VALUE;
+    }
+    // Keys of canonical maps, which could not be indexed, are scanned only up to the key.
+    boolean canonical = isCanonical();
+    keyPtr = (short) (ptr + headerLength());
+    while (length > 0) {
+      result = compareKey(keyPtr, key, keyOff, keyLen);
+      if (result == 0) {
+        return next(keyPtr);
+      }
+      if (result > 0 && canonical) {
+        break;
+      }
+      keyPtr = next(next(keyPtr));
+      length--;
+    }
+    return KMType.INVALID_VALUE;
   }
 
   public short containedType() {
@@ -358,6 +429,13 @@ public class KMMap extends KMType {
   }
 
   public byte[] getBuffer() {
-    return heap;
+    return (byte[]) bufferTable[KM_MAP_OFFSET];
+  }
+
+  // Reordering and indexing use the side tables of the repository, which only apply to the heap.
+  private void assertHeap() {
+    if (getBuffer() != heap) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
   }
 }
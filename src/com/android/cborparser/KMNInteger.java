@@ -0,0 +1,73 @@
+/*
+ * Copyright(C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cborparser;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * KMNInteger represents 8 bit, 16 bit, 32 bit and 64 bit negative integers. It corresponds to CBOR
+ * nint type, which encodes the value -1 - n as the unsigned integer n. The accessors inherited
+ * from KMInteger return n i.e. the encoded argument and not the negative value.
+ */
+public class KMNInteger extends KMInteger {
+
+  private static KMNInteger prototype;
+  public static byte NEG_INT_MAJOR_TYPE = MAJOR_TYPE_NEG_INT;
+
+  private KMNInteger() {}
+
+  private static KMNInteger proto(byte[] buffer, short ptr) {
+    if (prototype == null) {
+      prototype = new KMNInteger();
+    }
+    KMType.instanceTable[KM_NEG_INTEGER_OFFSET] = ptr;
+    KMType.bufferTable[KM_NEG_INTEGER_OFFSET] = buffer;
+    return prototype;
+  }
+
+  public static short exp() {
+    return KMType.exp(NEG_INT_MAJOR_TYPE);
+  }
+
+  // Creates the negative integer -1 - n, where n is the unsigned big endian number in num.
+  public static short instance(byte[] num, short srcOff, short length) {
+    short ptr = KMInteger.instance(num, srcOff, length);
+    heap[ptr] |= NEG_INT_MAJOR_TYPE;
+    return ptr;
+  }
+
+  public static KMNInteger cast(short ptr) {
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMNInteger
+  public static KMNInteger cast(byte[] buffer, short ptr) {
+    if (getMajorType(buffer, ptr) != MAJOR_TYPE_NEG_INT) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+    return proto(buffer, ptr);
+  }
+
+  public byte[] getBuffer() {
+    return (byte[]) KMType.bufferTable[KM_NEG_INTEGER_OFFSET];
+  }
+
+  protected short getBaseOffset() {
+    return instanceTable[KM_NEG_INTEGER_OFFSET];
+  }
+}
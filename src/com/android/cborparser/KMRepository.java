@@ -38,11 +38,53 @@ public class KMRepository {
   // Index to the heap buffer.
   private short[] heapIndex;
 
+  // Side tables attached to decoded items. Each attachment is a triple of (owner pointer, kind,
+  // value) where the meaning of the value depends upon the kind.
+  public static final byte MAX_ATTACHMENTS = 16;
+  private static final byte ATTACHMENT_SIZE = 3;
+  private static final byte ATTACHMENT_OWNER = 0;
+  private static final byte ATTACHMENT_KIND = 1;
+  private static final byte ATTACHMENT_VALUE = 2;
+  // Attachment kinds
+  public static final byte CHILD_INDEX = 0x01;
+  // Tag index of a key parameter map, the value is the heap offset of the index.
+  public static final byte TAG_INDEX = 0x02;
+  // Tag presence bitmap of a key parameter map, the value is the heap offset of the bitmap.
+  public static final byte TAG_PRESENCE = 0x03;
+  // Marks a map whose entries are in canonical order, the value is not used.
+  public static final byte CANONICAL = 0x04;
+  // Child offset index holds one short per child of an indexed container. It is sized as a
+  // fraction of the heap so that it scales with the transient memory budget.
+  public static final short CHILD_INDEX_SIZE = (short) (HEAP_SIZE / 32);
+  // Subtree length memo is a direct mapped cache of the encoded lengths of arrays and maps keyed by
+  // their offset. Each entry is a pair of (offset + 1, length) so that a cleared entry is empty.
+  public static final short LENGTH_CACHE_SIZE = 64;
+  private static final byte LENGTH_CACHE_ENTRY_SIZE = 2;
+  // Side table state offsets.
+  private static final byte ATTACHMENT_COUNT = 0;
+  private static final byte CHILD_INDEX_USED = 1;
+  private static final byte LAST_ATTACHMENT = 2;
+  private static final byte LENGTH_CACHE_ENABLED = 3;
+  private static final byte SIDE_TABLE_STATE_SIZE = 4;
+  private short[] attachments;
+  private short[] childIndex;
+  private short[] sideTableState;
+  private short[] lengthCache;
+
   public KMRepository(boolean isUpgrading) {
     heap = JCSystem.makeTransientByteArray(HEAP_SIZE, JCSystem.CLEAR_ON_RESET);
     heapIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     reclaimIndex = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
     reclaimIndex[0] = HEAP_SIZE;
+    attachments =
+        JCSystem.makeTransientShortArray(
+            (short) (MAX_ATTACHMENTS * ATTACHMENT_SIZE), JCSystem.CLEAR_ON_RESET);
+    childIndex = JCSystem.makeTransientShortArray(CHILD_INDEX_SIZE, JCSystem.CLEAR_ON_RESET);
+    sideTableState =
+        JCSystem.makeTransientShortArray(SIDE_TABLE_STATE_SIZE, JCSystem.CLEAR_ON_RESET);
+    lengthCache =
+        JCSystem.makeTransientShortArray(
+            (short) (LENGTH_CACHE_SIZE * LENGTH_CACHE_ENTRY_SIZE), JCSystem.CLEAR_ON_RESET);
     repository = this;
   }
 
@@ -61,6 +103,8 @@ public class KMRepository {
     Util.arrayFillNonAtomic(heap, (short) 0, HEAP_SIZE, (byte) 0);
     heapIndex[0] = 0;
     reclaimIndex[0] = HEAP_SIZE;
+    clearSideTables();
+    KMCursor.closeAll();
   }
 
   public void onDeselect() {}
@@ -122,6 +166,7 @@ public class KMRepository {
     }
     Util.arrayFillNonAtomic(heap, offset, (short) (heapIndex[0] - offset), (byte) 0);
     heapIndex[0] = offset;
+    releaseSideTables(offset);
   }
 
   private void moveChunk(short startOff, short length, byte[] scratchPad, short offset) {
@@ -134,6 +179,8 @@ public class KMRepository {
   }
 
   public void move(short startOff, short length, byte[] scratchPad, short offset) {
+    // Moving the data invalidates the offsets recorded for the data which follows startOff.
+    releaseSideTables(startOff, heapIndex[0]);
     // move chunks of 256.
     short noOfLoops = (short) (length / 256);
     short remaining = (short) (length % 256);
@@ -145,7 +192,315 @@ public class KMRepository {
     }
   }
 
+  // Rotates the heap bytes in [startOff, endOff) in place so that the byte at midOff becomes the
+  // first byte.
+  public void rotate(short startOff, short midOff, short endOff) {
+    reverse(startOff, midOff);
+    reverse(midOff, endOff);
+    reverse(startOff, endOff);
+  }
+
+  private void reverse(short startOff, short endOff) {
+    byte tmp;
+    endOff--;
+    while (startOff < endOff) {
+      tmp = heap[startOff];
+      heap[startOff] = heap[endOff];
+      heap[endOff] = tmp;
+      startOff++;
+      endOff--;
+    }
+  }
+
   public short getHeapReclaimIndex() {
     return reclaimIndex[0];
   }
+
+  // Drops all the side tables.
+  public void clearSideTables() {
+    sideTableState[ATTACHMENT_COUNT] = 0;
+    sideTableState[CHILD_INDEX_USED] = 0;
+    sideTableState[LAST_ATTACHMENT] = 0;
+    clearLengthCache();
+  }
+
+  public void clearLengthCache() {
+    short index = 0;
+    while (index < (short) lengthCache.length) {
+      lengthCache[index] = 0;
+      index += LENGTH_CACHE_ENTRY_SIZE;
+    }
+  }
+
+  // Drops the lengths memoized for the items in [start, end) only, e.g. once the bytes in the
+  // range are permuted.
+  public void clearLengthCache(short start, short end) {
+    short index = 0;
+    short ptr;
+    while (index < (short) lengthCache.length) {
+      ptr = (short) (lengthCache[index] - 1);
+      if (lengthCache[index] != 0 && ptr >= start && ptr < end) {
+        lengthCache[index] = 0;
+      }
+      index += LENGTH_CACHE_ENTRY_SIZE;
+    }
+  }
+
+  // Drops the side tables attached to items at or beyond the given heap offset.
+  private void releaseSideTables(short offset) {
+    short index = 0;
+    short count = sideTableState[ATTACHMENT_COUNT];
+    short entry;
+    while (index < count) {
+      entry = (short) (index * ATTACHMENT_SIZE);
+      if (attachments[(short) (entry + ATTACHMENT_OWNER)] >= offset
+          || (isHeapAttachment((byte) attachments[(short) (entry + ATTACHMENT_KIND)])
+              && attachments[(short) (entry + ATTACHMENT_VALUE)] >= offset)) {
+        attachments[(short) (entry + ATTACHMENT_OWNER)] = KMType.INVALID_VALUE;
+      }
+      index++;
+    }
+    releaseAttachments();
+    index = 0;
+    while (index < (short) lengthCache.length) {
+      if (lengthCache[index] > offset) {
+        lengthCache[index] = 0;
+      }
+      index += LENGTH_CACHE_ENTRY_SIZE;
+    }
+  }
+
+  // Drops the side tables which refer to the heap bytes in [start, end), before the bytes are
+  // changed in place or moved: the side tables of the items in the range, of the containers which
+  // enclose the start of the range and the side tables allocated in the range. The side tables of
+  // all the other items are kept.
+  public void releaseSideTables(short start, short end) {
+    short index = 0;
+    short entry;
+    short owner;
+    while (index < sideTableState[ATTACHMENT_COUNT]) {
+      entry = (short) (index * ATTACHMENT_SIZE);
+      owner = attachments[(short) (entry + ATTACHMENT_OWNER)];
+      if (owner != KMType.INVALID_VALUE && owner < start && end(owner) > start) {
+        attachments[(short) (entry + ATTACHMENT_OWNER)] = KMType.INVALID_VALUE;
+      }
+      index++;
+    }
+    index = 0;
+    while (index < (short) lengthCache.length) {
+      owner = (short) (lengthCache[index] - 1);
+      if (lengthCache[index] != 0
+          && owner < start
+          && (short) (owner + lengthCache[(short) (index + 1)]) > start) {
+        lengthCache[index] = 0;
+      }
+      index += LENGTH_CACHE_ENTRY_SIZE;
+    }
+    releaseItemSideTables(start, end);
+  }
+
+  // Drops the side tables of the items in [start, end) and the side tables allocated in the range,
+  // but keeps the ones of the enclosing containers. The decoder uses it when it moves decoded
+  // items while their parents, whose side tables are still being filled, are decoded.
+  public void releaseItemSideTables(short start, short end) {
+    short index = 0;
+    short entry;
+    short owner;
+    while (index < sideTableState[ATTACHMENT_COUNT]) {
+      entry = (short) (index * ATTACHMENT_SIZE);
+      owner = attachments[(short) (entry + ATTACHMENT_OWNER)];
+      if (owner != KMType.INVALID_VALUE
+          && ((owner >= start && owner < end)
+              || (isHeapAttachment((byte) attachments[(short) (entry + ATTACHMENT_KIND)])
+                  && attachments[(short) (entry + ATTACHMENT_VALUE)] >= start
+                  && attachments[(short) (entry + ATTACHMENT_VALUE)] < end))) {
+        attachments[(short) (entry + ATTACHMENT_OWNER)] = KMType.INVALID_VALUE;
+      }
+      index++;
+    }
+    releaseAttachments();
+    clearLengthCache(start, end);
+  }
+
+  // Returns the offset which follows the item at the given offset.
+  private short end(short ptr) {
+    short length = getCachedLength(ptr);
+    if (length != KMType.INVALID_VALUE) {
+      return (short) (ptr + length);
+    }
+    return KMCursor.end(ptr);
+  }
+
+  // Released entries at the top of the attachment table give their space back.
+  private void releaseAttachments() {
+    short count = sideTableState[ATTACHMENT_COUNT];
+    while (count > 0) {
+      if (attachments[(short) ((count - 1) * ATTACHMENT_SIZE + ATTACHMENT_OWNER)]
+          != KMType.INVALID_VALUE) {
+        break;
+      }
+      count--;
+    }
+    sideTableState[ATTACHMENT_COUNT] = count;
+    sideTableState[LAST_ATTACHMENT] = 0;
+    releaseChildIndex();
+  }
+
+  // Side tables of these kinds are allocated in the heap.
+  private static boolean isHeapAttachment(byte kind) {
+    return kind == TAG_INDEX || kind == TAG_PRESENCE;
+  }
+
+  // The child offset index in use ends after the last slot reserved by a live attachment.
+  private void releaseChildIndex() {
+    short used = 0;
+    short index = 0;
+    short slot;
+    while (index < sideTableState[ATTACHMENT_COUNT]) {
+      slot = (short) (index * ATTACHMENT_SIZE);
+      if (attachments[(short) (slot + ATTACHMENT_OWNER)] != KMType.INVALID_VALUE
+          && attachments[(short) (slot + ATTACHMENT_KIND)] == CHILD_INDEX) {
+        slot = attachments[(short) (slot + ATTACHMENT_VALUE)];
+        if ((short) (slot + childIndex[(short) (slot - 1)]) > used) {
+          used = (short) (slot + childIndex[(short) (slot - 1)]);
+        }
+      }
+      index++;
+    }
+    sideTableState[CHILD_INDEX_USED] = used;
+  }
+
+  // Side tables of these kinds are only hints recorded by the decoder, which are evicted when the
+  // table is full.
+  private static boolean isEvictableAttachment(byte kind) {
+    return kind == TAG_PRESENCE || kind == CANONICAL;
+  }
+
+  // Attaches a side table to an item. An earlier side table of the same kind attached to the item
+  // is replaced, else a released entry is reused, else the oldest decoder hint is evicted. Returns
+  // false if the attachment table is full.
+  public boolean attach(short owner, byte kind, short value) {
+    short count = sideTableState[ATTACHMENT_COUNT];
+    short free = KMType.INVALID_VALUE;
+    short evict = KMType.INVALID_VALUE;
+    short index = 0;
+    short entry;
+    while (index < count) {
+      entry = (short) (index * ATTACHMENT_SIZE);
+      if (attachments[(short) (entry + ATTACHMENT_OWNER)] == owner
+          && attachments[(short) (entry + ATTACHMENT_KIND)] == kind) {
+        free = index;
+        break;
+      }
+      if (attachments[(short) (entry + ATTACHMENT_OWNER)] == KMType.INVALID_VALUE) {
+        if (free == KMType.INVALID_VALUE) {
+          free = index;
+        }
+      } else if (evict == KMType.INVALID_VALUE
+          && isEvictableAttachment((byte) attachments[(short) (entry + ATTACHMENT_KIND)])) {
+        evict = index;
+      }
+      index++;
+    }
+    if (free == KMType.INVALID_VALUE && count < MAX_ATTACHMENTS) {
+      free = count;
+      sideTableState[ATTACHMENT_COUNT] = (short) (count + 1);
+    }
+    if (free == KMType.INVALID_VALUE) {
+      free = evict;
+    }
+    if (free == KMType.INVALID_VALUE) {
+      return false;
+    }
+    entry = (short) (free * ATTACHMENT_SIZE);
+    attachments[(short) (entry + ATTACHMENT_OWNER)] = owner;
+    attachments[(short) (entry + ATTACHMENT_KIND)] = kind;
+    attachments[(short) (entry + ATTACHMENT_VALUE)] = value;
+    sideTableState[LAST_ATTACHMENT] = free;
+    return true;
+  }
+
+  // Returns the value of the side table of the given kind attached to an item or
+  // KMType.INVALID_VALUE if there is none. Most recent attachments take precedence.
+  public short getAttachment(short owner, byte kind) {
+    short index = sideTableState[LAST_ATTACHMENT];
+    if (index < sideTableState[ATTACHMENT_COUNT]
+        && attachments[(short) (index * ATTACHMENT_SIZE + ATTACHMENT_OWNER)] == owner
+        && attachments[(short) (index * ATTACHMENT_SIZE + ATTACHMENT_KIND)] == kind) {
+      return attachments[(short) (index * ATTACHMENT_SIZE + ATTACHMENT_VALUE)];
+    }
+    index = sideTableState[ATTACHMENT_COUNT];
+    while (index > 0) {
+      index--;
+      if (attachments[(short) (index * ATTACHMENT_SIZE + ATTACHMENT_OWNER)] == owner
+          && attachments[(short) (index * ATTACHMENT_SIZE + ATTACHMENT_KIND)] == kind) {
+        sideTableState[LAST_ATTACHMENT] = index;
+        return attachments[(short) (index * ATTACHMENT_SIZE + ATTACHMENT_VALUE)];
+      }
+    }
+    return KMType.INVALID_VALUE;
+  }
+
+  // Reserves space in the child offset index for a container with the given number of children.
+  // Returns the slot of the first child or KMType.INVALID_VALUE if the index is exhausted, in
+  // which case the container is simply not indexed.
+  public short reserveChildIndex(short owner, short count) {
+    short base = sideTableState[CHILD_INDEX_USED];
+    if (count < 0 || count >= (short) (CHILD_INDEX_SIZE - base)) {
+      return KMType.INVALID_VALUE;
+    }
+    // First slot holds the number of children.
+    if (!attach(owner, CHILD_INDEX, (short) (base + 1))) {
+      return KMType.INVALID_VALUE;
+    }
+    childIndex[base] = count;
+    sideTableState[CHILD_INDEX_USED] = (short) (base + count + 1);
+    return (short) (base + 1);
+  }
+
+  public void setChildOffset(short slot, short offset) {
+    childIndex[slot] = offset;
+  }
+
+  // Returns the offset of the child at the given index of an indexed container or
+  // KMType.INVALID_VALUE if the container is not indexed.
+  public short getChildOffset(short owner, short index) {
+    short slot = getAttachment(owner, CHILD_INDEX);
+    if (slot == KMType.INVALID_VALUE || index >= childIndex[(short) (slot - 1)]) {
+      return KMType.INVALID_VALUE;
+    }
+    return childIndex[(short) (slot + index)];
+  }
+
+  private static short lengthCacheEntry(short ptr) {
+    short hash = (short) (ptr ^ (short) ((ptr >> 6) & 0x03FF));
+    return (short) ((short) (hash & (LENGTH_CACHE_SIZE - 1)) * LENGTH_CACHE_ENTRY_SIZE);
+  }
+
+  // The subtree length memo is consulted and filled while measuring containers only when it is
+  // enabled, see KMDecoder.OPT_CACHE_LENGTHS.
+  public void setLengthCacheEnabled(boolean enabled) {
+    sideTableState[LENGTH_CACHE_ENABLED] = enabled ? (short) 1 : (short) 0;
+  }
+
+  public boolean isLengthCacheEnabled() {
+    return sideTableState[LENGTH_CACHE_ENABLED] != 0;
+  }
+
+  // Remembers the encoded length, i.e. header and content, of the item at the given offset.
+  public void cacheLength(short ptr, short length) {
+    short entry = lengthCacheEntry(ptr);
+    lengthCache[entry] = (short) (ptr + 1);
+    lengthCache[(short) (entry + 1)] = length;
+  }
+
+  // Returns the encoded length of the item at the given offset or KMType.INVALID_VALUE if it is
+  // not known.
+  public short getCachedLength(short ptr) {
+    short entry = lengthCacheEntry(ptr);
+    if (lengthCache[entry] != (short) (ptr + 1)) {
+      return KMType.INVALID_VALUE;
+    }
+    return lengthCache[(short) (entry + 1)];
+  }
 }
@@ -0,0 +1,524 @@
+/*
+ * Copyright(C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cborparser;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/**
+ * KMSchema compiles an expression i.e. a CBOR template in the heap into a decode program. The
+ * program is a flat short array of instructions laid out in the same order as the expression.
+ * Each instruction is struct{short opcode; short arg; short size} followed by the instructions
+ * of its children, where size is the number of shorts taken by the instruction and all its
+ * children. So the following sibling of an instruction is always at pc + size. Programs do not
+ * refer to the heap, so a compiled program can be kept and reused across commands.
+ */
+public class KMSchema {
+
+  // Opcodes
+  // Expect an integer. arg is the tag type or enumeration the value is validated against, or 0.
+  public static final short OP_UINT = 1;
+  // Expect a byte string.
+  public static final short OP_BYTES = 2;
+  // Expect an array. arg is the number of element instructions, or 0 if there are none, and the
+  // number of them which are optional in the upper byte. Optional elements are the trailing ones,
+  // so arrays may have from the number of required elements up to the number of instructions.
+  // Both counts take a byte, so compile rejects arrays of more than MAX_ELEMENTS elements with
+  // ISO7816.SW_WRONG_LENGTH. Longer arrays of one element type are expressed with arrayOfExp.
+  public static final short OP_ARRAY = 3;
+  // Expect a map. arg is the number of entries each made of a key and a value instruction.
+  public static final short OP_MAP = 4;
+  // Expect key parameters. arg is the rule for invalid tags. The instruction is followed by a
+  // dispatch table and then by the entries of the allowed tag types, each made of an OP_UINT key
+  // instruction with the tag type and a value instruction. The dispatch table has a slot for each
+  // tag type, indexed by the upper nibble of the tag type, which holds the pc of the key
+  // instruction of the tag type or KMType.INVALID_VALUE.
+  public static final short OP_KEY_PARAMS = 5;
+  // Expect a negative integer.
+  public static final short OP_NINT = 6;
+  // Expect a text string.
+  public static final short OP_TEXT = 7;
+  // Expect a simple value or a float.
+  public static final short OP_SIMPLE = 8;
+  // Expect a semantic tag. arg is the tag number, or 0 for any tag. The instruction is followed by
+  // the instruction of the tagged item.
+  public static final short OP_SEMANTIC_TAG = 9;
+  // Skip an item of any type. Only the headers of the item and of its descendants are read, none
+  // of them is validated.
+  public static final short OP_SKIP = 10;
+  // Expect an array of any length whose elements all match the instruction which follows.
+  public static final short OP_ARRAY_OF = 11;
+  // Expect an item which matches one of the alternative instructions which follow. arg is the mask
+  // of the major types the alternatives accept, one bit per major type. The first alternative
+  // which accepts the major type of the item is run.
+  public static final short OP_ONE_OF = 12;
+  public static final byte DISPATCH_TABLE_SIZE = 16;
+
+  public static final byte INSTRUCTION_SIZE = 3;
+  public static final byte OPCODE = 0;
+  public static final byte ARG = 1;
+  public static final byte SIZE = 2;
+
+  // Expressions are annotated with semantic tags in a range which is not used by the inputs.
+  // Skip marker i.e. TAG_SKIP(null), compiled to OP_SKIP.
+  public static final short TAG_SKIP = 0x7F00;
+  // Homogeneous array marker i.e. TAG_ARRAY_OF(element expression), compiled to OP_ARRAY_OF.
+  public static final short TAG_ARRAY_OF = 0x7F01;
+  // Alternatives marker i.e. TAG_ONE_OF([alternative expressions]), compiled to OP_ONE_OF.
+  public static final short TAG_ONE_OF = 0x7F02;
+  // Optional element marker i.e. TAG_OPTIONAL(element expression), counted in OP_ARRAY.
+  public static final short TAG_OPTIONAL = 0x7F03;
+  private static final short OPTIONAL_SHIFT = 8;
+  private static final short ELEMENTS_MASK = 0xFF;
+  public static final short MAX_ELEMENTS = ELEMENTS_MASK;
+  // Mask of the major types accepted by OP_SKIP.
+  private static final short ANY_TYPE_MASK = 0xFF;
+
+  // Marks of the instructions on a projection path, kept in the opcode while projecting.
+  private static final short MARK_PATH = 0x4000;
+  private static final short MARK_WHOLE = 0x2000;
+  private static final short MARK_MASK = MARK_PATH | MARK_WHOLE;
+
+  public static final byte MAX_DEPTH = 8;
+  // Compiler stack holds struct{short pc; short remaining} of the open containers.
+  private static short[] stack;
+
+  public static void initialize() {
+    stack = JCSystem.makeTransientShortArray((short) (MAX_DEPTH * 2), JCSystem.CLEAR_ON_RESET);
+  }
+
+  // Returns the number of shorts the program of the expression takes, so that a program buffer
+  // can be sized before the expression is compiled.
+  public static short programSize(short exp) {
+    return compile(exp, null, (short) 0);
+  }
+
+  // Compiles the expression into the program starting at offset. Returns the length of the
+  // program. The expression is walked once in encoding order, so the compiler does not recurse.
+  // Without a program only the length is computed.
+  public static short compile(short exp, short[] program, short offset) {
+    short pc = offset;
+    short depth = 0;
+    short pos = exp;
+    short node;
+    short opcode;
+    short arg;
+    short children;
+    boolean optional = false;
+    while (true) {
+      arg = 0;
+      children = 0;
+      if (KMType.getMajorType(pos) == KMType.MAJOR_TYPE_SEMANTIC_TAG
+          && KMSemanticTag.cast(pos).getTag() == TAG_OPTIONAL) {
+        // The marker is not an instruction, it is counted in the array of the element.
+        optional = true;
+        pos += KMSemanticTag.cast(pos).headerLength();
+        continue;
+      }
+      if (depth > 0) {
+        if (program != null) {
+          countElement(program, stack[(short) (depth * 2 - 2)], optional);
+        }
+      } else if (optional) {
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      }
+      optional = false;
+      switch (KMType.getMajorType(pos)) {
+        case KMType.MAJOR_TYPE_INT:
+          opcode = OP_UINT;
+          arg = KMInteger.cast(pos).getShort();
+          pos += KMInteger.cast(pos).length();
+          break;
+        case KMType.MAJOR_TYPE_NEG_INT:
+          opcode = OP_NINT;
+          pos += KMNInteger.cast(pos).length();
+          break;
+        case KMType.MAJOR_TYPE_BYTE_BLOB:
+          opcode = OP_BYTES;
+          pos += (short) (KMByteBlob.cast(pos).headerLength() + KMByteBlob.cast(pos).length());
+          break;
+        case KMType.MAJOR_TYPE_TEXT_STRING:
+          opcode = OP_TEXT;
+          pos += (short) (KMTextString.cast(pos).headerLength() + KMTextString.cast(pos).length());
+          break;
+        case KMType.MAJOR_TYPE_SIMPLE_VALUE:
+          opcode = OP_SIMPLE;
+          pos += KMSimpleValue.cast(pos).length();
+          break;
+        case KMType.MAJOR_TYPE_SEMANTIC_TAG:
+          if (KMSemanticTag.cast(pos).getTag() == TAG_SKIP) {
+            opcode = OP_SKIP;
+            pos = KMSemanticTag.cast(pos).getValuePtr();
+            pos += KMSimpleValue.cast(pos).length();
+            break;
+          }
+          opcode = OP_SEMANTIC_TAG;
+          arg = KMSemanticTag.cast(pos).getTag();
+          children = 1;
+          pos += KMSemanticTag.cast(pos).headerLength();
+          if (arg == TAG_ARRAY_OF) {
+            opcode = OP_ARRAY_OF;
+            arg = 0;
+          } else if (arg == TAG_ONE_OF) {
+            // The array of the alternatives is consumed by the instruction itself. The mask is
+            // set once the alternatives are compiled.
+            opcode = OP_ONE_OF;
+            arg = 0;
+            children = KMArray.cast(pos).length();
+            pos += KMArray.cast(pos).headerLength();
+          }
+          break;
+        case KMType.MAJOR_TYPE_ARRAY:
+          opcode = OP_ARRAY;
+          arg = KMArray.cast(pos).length();
+          if (arg > MAX_ELEMENTS) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+          }
+          children = arg;
+          pos += KMArray.cast(pos).headerLength();
+          break;
+        case KMType.MAJOR_TYPE_MAP:
+          children = (short) (KMMap.cast(pos).length() * 2);
+          if (isKeyParamExp(pos)) {
+            opcode = OP_KEY_PARAMS;
+            short rulePtr = KMMap.cast(pos).getKeyValue((short) 0);
+            arg = KMInteger.cast(rulePtr).getShort();
+            // The rule entry is consumed by the instruction itself.
+            pos = KMMap.cast(pos).next(rulePtr);
+            children -= 2;
+          } else {
+            opcode = OP_MAP;
+            arg = (short) (children / 2);
+            pos += KMMap.cast(pos).headerLength();
+          }
+          break;
+        default:
+          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+          return 0;
+      }
+      node = pc;
+      pc = emit(program, pc, opcode, arg);
+      if (opcode == OP_KEY_PARAMS) {
+        pc = reserveDispatchTable(program, pc);
+      }
+      if (children != 0) {
+        if (depth >= MAX_DEPTH) {
+          ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+        }
+        stack[(short) (depth * 2)] = node;
+        stack[(short) (depth * 2 + 1)] = children;
+        depth++;
+        continue;
+      }
+      // Close the containers whose last child has been compiled.
+      while (depth > 0) {
+        stack[(short) (depth * 2 - 1)]--;
+        if (stack[(short) (depth * 2 - 1)] > 0) {
+          break;
+        }
+        depth--;
+        if (program == null) {
+          continue;
+        }
+        node = stack[(short) (depth * 2)];
+        program[(short) (node + SIZE)] = (short) (pc - node);
+        if (program[(short) (node + OPCODE)] == OP_KEY_PARAMS) {
+          fillDispatchTable(program, node);
+        }
+        if (program[(short) (node + OPCODE)] == OP_ONE_OF) {
+          fillTypeMask(program, node);
+        }
+      }
+      if (depth == 0) {
+        return (short) (pc - offset);
+      }
+    }
+  }
+
+  // Counts the optional elements of the array instruction at node. Required elements may not follow
+  // optional ones.
+  private static void countElement(short[] program, short node, boolean optional) {
+    short optionals = (short) (program[(short) (node + ARG)] >> OPTIONAL_SHIFT);
+    if (optional) {
+      if (program[(short) (node + OPCODE)] != OP_ARRAY) {
+        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+      }
+      program[(short) (node + ARG)] += (short) (1 << OPTIONAL_SHIFT);
+    } else if (optionals != 0 && program[(short) (node + OPCODE)] == OP_ARRAY) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+  }
+
+  // Returns the number of element instructions of the array instruction at pc.
+  public static short maxElements(short[] program, short pc) {
+    return (short) (program[(short) (pc + ARG)] & ELEMENTS_MASK);
+  }
+
+  // Returns the number of required elements of the array instruction at pc.
+  public static short minElements(short[] program, short pc) {
+    return (short)
+        (maxElements(program, pc) - (short) (program[(short) (pc + ARG)] >> OPTIONAL_SHIFT));
+  }
+
+  // Expression of an element of an array which may be left out, which is to be created right after
+  // this one. Only the trailing elements of an array can be optional.
+  public static short optionalExp() {
+    return KMSemanticTag.instance(TAG_OPTIONAL);
+  }
+
+  // Expression of an item which is skipped instead of decoded.
+  public static short skipExp() {
+    short ptr = KMSemanticTag.instance(TAG_SKIP);
+    KMSimpleValue.instance(KMSimpleValue.NULL);
+    return ptr;
+  }
+
+  // Expression of an array of any length whose elements all match one expression, which is to
+  // be created right after this one.
+  public static short arrayOfExp() {
+    return KMSemanticTag.instance(TAG_ARRAY_OF);
+  }
+
+  // Expression of an item which matches one of the given number of alternative expressions, which
+  // are to be created right after this one. The alternatives are told apart by the major type of
+  // the item, so each major type should be accepted by one alternative only.
+  public static short oneOfExp(short count) {
+    short ptr = KMSemanticTag.instance(TAG_ONE_OF);
+    KMArray.instance(count);
+    return ptr;
+  }
+
+  // Projects the program at pc onto the given paths, so that only the items on the paths are
+  // decoded and validated and all others are skipped. Paths are laid out one after the other as
+  // struct{short length; short steps[length]}. A step selects the element at an index of an
+  // array, the value of the entry at an index of a map, as map expressions are matched in order,
+  // or the values of a tag type of key parameters. Elements of homogeneous arrays share one
+  // instruction, so any step selects all of them. Semantic tags are passed through without a
+  // step. The item at the end of a path is decoded entirely. The program is rewritten in place;
+  // skipped instructions keep their size, so the layout of the program does not change.
+  public static void project(short[] program, short pc, short[] paths, short pathsOff,
+      short pathsLen) {
+    short end = (short) (pathsOff + pathsLen);
+    short steps;
+    short node;
+    while (pathsOff < end) {
+      steps = paths[pathsOff++];
+      node = pc;
+      while (true) {
+        while (opcode(program, node) == OP_SEMANTIC_TAG && steps > 0) {
+          program[(short) (node + OPCODE)] |= MARK_PATH;
+          node = (short) (node + INSTRUCTION_SIZE);
+        }
+        if (steps == 0) {
+          program[(short) (node + OPCODE)] |= MARK_WHOLE;
+          break;
+        }
+        program[(short) (node + OPCODE)] |= MARK_PATH;
+        node = selectChild(program, node, paths[pathsOff++]);
+        steps--;
+      }
+    }
+    // Instructions which are neither on a path nor below its end are skipped.
+    end = skip(program, pc);
+    node = pc;
+    short op;
+    while (node < end) {
+      op = program[(short) (node + OPCODE)];
+      program[(short) (node + OPCODE)] = (short) (op & ~MARK_MASK);
+      if ((op & MARK_WHOLE) != 0) {
+        node = skip(program, node);
+      } else if ((op & MARK_PATH) != 0) {
+        node = firstChild(program, node);
+      } else {
+        program[(short) (node + OPCODE)] = OP_SKIP;
+        node = skip(program, node);
+      }
+    }
+  }
+
+  // Marks the key of the selected map entry and returns the value of the entry. Entries of key
+  // parameters are selected by tag type and only their value is skipped when they are not
+  // selected, as the key is needed to find the tag type.
+  private static short selectChild(short[] program, short node, short step) {
+    short op = opcode(program, node);
+    short end = skip(program, node);
+    short child = firstChild(program, node);
+    if (op == OP_KEY_PARAMS) {
+      short value = KMType.INVALID_VALUE;
+      while (child < end) {
+        program[(short) (child + OPCODE)] |= MARK_WHOLE;
+        if (program[(short) (child + ARG)] == step) {
+          value = skip(program, child);
+        }
+        child = skip(program, skip(program, child));
+      }
+      if (value != KMType.INVALID_VALUE) {
+        return value;
+      }
+    } else if (op == OP_MAP) {
+      while (child < end) {
+        if (step == 0) {
+          program[(short) (child + OPCODE)] |= MARK_WHOLE;
+          return skip(program, child);
+        }
+        step--;
+        child = skip(program, skip(program, child));
+      }
+    } else if (op == OP_ARRAY_OF) {
+      return child;
+    } else if (op == OP_ARRAY) {
+      while (child < end) {
+        if (step == 0) {
+          return child;
+        }
+        step--;
+        child = skip(program, child);
+      }
+    }
+    KMException.throwIt(KMError.INVALID_ARGUMENT);
+    return KMType.INVALID_VALUE;
+  }
+
+  private static short opcode(short[] program, short pc) {
+    return (short) (program[(short) (pc + OPCODE)] & ~MARK_MASK);
+  }
+
+  // Returns the pc of the first child of a container instruction.
+  private static short firstChild(short[] program, short pc) {
+    if (opcode(program, pc) == OP_KEY_PARAMS) {
+      return (short) (pc + INSTRUCTION_SIZE + DISPATCH_TABLE_SIZE);
+    }
+    return (short) (pc + INSTRUCTION_SIZE);
+  }
+
+  private static short emit(short[] program, short pc, short opcode, short arg) {
+    if (program == null) {
+      return (short) (pc + INSTRUCTION_SIZE);
+    }
+    if ((short) (pc + INSTRUCTION_SIZE) > (short) program.length) {
+      ISOException.throwIt(ISO7816.SW_FILE_FULL);
+    }
+    program[(short) (pc + OPCODE)] = opcode;
+    program[(short) (pc + ARG)] = arg;
+    program[(short) (pc + SIZE)] = INSTRUCTION_SIZE;
+    return (short) (pc + INSTRUCTION_SIZE);
+  }
+
+  private static short reserveDispatchTable(short[] program, short pc) {
+    if (program == null) {
+      return (short) (pc + DISPATCH_TABLE_SIZE);
+    }
+    if ((short) (pc + DISPATCH_TABLE_SIZE) > (short) program.length) {
+      ISOException.throwIt(ISO7816.SW_FILE_FULL);
+    }
+    short slot = 0;
+    while (slot < DISPATCH_TABLE_SIZE) {
+      program[(short) (pc + slot)] = KMType.INVALID_VALUE;
+      slot++;
+    }
+    return (short) (pc + DISPATCH_TABLE_SIZE);
+  }
+
+  private static void fillDispatchTable(short[] program, short node) {
+    short table = (short) (node + INSTRUCTION_SIZE);
+    short end = skip(program, node);
+    short pc = (short) (table + DISPATCH_TABLE_SIZE);
+    short slot;
+    while (pc < end) {
+      slot = (short) (table + (short) ((program[(short) (pc + ARG)] >> 12) & 0x0F));
+      // First entry of a tag type wins, same as a linear search.
+      if (program[slot] == KMType.INVALID_VALUE) {
+        program[slot] = pc;
+      }
+      pc = skip(program, skip(program, pc));
+    }
+  }
+
+  private static void fillTypeMask(short[] program, short node) {
+    short end = skip(program, node);
+    short pc = (short) (node + INSTRUCTION_SIZE);
+    short mask = 0;
+    while (pc < end) {
+      mask |= typeMask(program, pc);
+      pc = skip(program, pc);
+    }
+    program[(short) (node + ARG)] = mask;
+  }
+
+  // Returns the mask of the major types accepted by the instruction at pc, one bit per major type.
+  public static short typeMask(short[] program, short pc) {
+    short op = opcode(program, pc);
+    if (op == OP_SKIP) {
+      return ANY_TYPE_MASK;
+    }
+    if (op == OP_ONE_OF) {
+      return program[(short) (pc + ARG)];
+    }
+    return (short) (1 << (short) ((short) (majorType(op) >> 5) & 0x07));
+  }
+
+  // Returns the major type of the items of the opcode, or KMType.INVALID_VALUE if the opcode
+  // accepts several major types.
+  public static short majorType(short opcode) {
+    switch (opcode) {
+      case OP_UINT:
+        return KMType.MAJOR_TYPE_INT;
+      case OP_NINT:
+        return KMType.MAJOR_TYPE_NEG_INT;
+      case OP_BYTES:
+        return KMType.MAJOR_TYPE_BYTE_BLOB;
+      case OP_TEXT:
+        return KMType.MAJOR_TYPE_TEXT_STRING;
+      case OP_ARRAY:
+      case OP_ARRAY_OF:
+        return KMType.MAJOR_TYPE_ARRAY;
+      case OP_MAP:
+      case OP_KEY_PARAMS:
+        return KMType.MAJOR_TYPE_MAP;
+      case OP_SEMANTIC_TAG:
+        return KMType.MAJOR_TYPE_SEMANTIC_TAG;
+      case OP_SIMPLE:
+        return KMType.MAJOR_TYPE_SIMPLE_VALUE;
+      default:
+        return KMType.INVALID_VALUE;
+    }
+  }
+
+  // Returns the pc of the key instruction of the tag type in the key parameters instruction at
+  // pc, or KMType.INVALID_VALUE if the tag type is not allowed. The value instruction follows the
+  // key instruction.
+  public static short dispatch(short[] program, short pc, short tagType) {
+    if ((tagType & 0x0FFF) != 0) {
+      return KMType.INVALID_VALUE;
+    }
+    return program[(short) (pc + INSTRUCTION_SIZE + (short) ((tagType >> 12) & 0x0F))];
+  }
+
+  // Key parameter expressions are maps whose first entry is the rule.
+  private static boolean isKeyParamExp(short exp) {
+    short rulePtr = KMMap.cast(exp).getKey((short) 0);
+    return rulePtr != KMType.INVALID_VALUE
+        && KMType.getMajorType(rulePtr) == KMType.MAJOR_TYPE_INT
+        && KMInteger.cast(rulePtr).getShort() == KMType.RULE;
+  }
+
+  // Returns the pc of the instruction following the given one.
+  public static short skip(short[] program, short pc) {
+    return (short) (pc + program[(short) (pc + SIZE)]);
+  }
+}
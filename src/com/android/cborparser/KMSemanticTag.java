@@ -0,0 +1,108 @@
+/*
+ * Copyright(C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cborparser;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * KMSemanticTag represents a CBOR tagged item i.e. a tag number followed by the tagged item. Like
+ * KMArray, an instance only holds the header; the tagged item is the item which follows it. As an
+ * expression, tag number 0 matches any tag.
+ */
+public class KMSemanticTag extends KMType {
+
+  private static KMSemanticTag prototype;
+  public static byte SEMANTIC_TAG_MAJOR_TYPE = MAJOR_TYPE_SEMANTIC_TAG;
+
+  private KMSemanticTag() {}
+
+  private static KMSemanticTag proto(byte[] buffer, short ptr) {
+    if (prototype == null) {
+      prototype = new KMSemanticTag();
+    }
+    KMType.instanceTable[KM_SEMANTIC_TAG_OFFSET] = ptr;
+    KMType.bufferTable[KM_SEMANTIC_TAG_OFFSET] = buffer;
+    return prototype;
+  }
+
+  // Expression of any tag. The expression of the tagged item follows.
+  public static short exp() {
+    return KMType.exp(SEMANTIC_TAG_MAJOR_TYPE);
+  }
+
+  // Expression of the given tag. The expression of the tagged item follows.
+  public static short exp(short tag) {
+    return instance(tag);
+  }
+
+  // Creates the header of the tag. The tagged item must be created right after it.
+  public static short instance(short tag) {
+    if (tag < 0) {
+      KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+    }
+    short ptr;
+    if (tag <= 23) {
+      ptr = repository.alloc((short) 1);
+      heap[ptr] = (byte) (SEMANTIC_TAG_MAJOR_TYPE | (byte) tag);
+    } else if (tag <= 255) {
+      ptr = repository.alloc((short) 2);
+      heap[ptr] = (byte) (SEMANTIC_TAG_MAJOR_TYPE | 0x18);
+      heap[(short) (ptr + 1)] = (byte) tag;
+    } else {
+      ptr = repository.alloc((short) 3);
+      heap[ptr] = (byte) (SEMANTIC_TAG_MAJOR_TYPE | 0x19);
+      Util.setShort(heap, (short) (ptr + 1), tag);
+    }
+    return ptr;
+  }
+
+  public static KMSemanticTag cast(short ptr) {
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMSemanticTag
+  public static KMSemanticTag cast(byte[] buffer, short ptr) {
+    if (getMajorType(buffer, ptr) != MAJOR_TYPE_SEMANTIC_TAG) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+    return proto(buffer, ptr);
+  }
+
+  // Tag numbers which do not fit in a short are rejected.
+  public short getTag() {
+    return length(getBaseOffset());
+  }
+
+  public short headerLength() {
+    return headerLength(getBaseOffset());
+  }
+
+  // Returns the offset of the tagged item.
+  public short getValuePtr() {
+    return (short) (getBaseOffset() + headerLength());
+  }
+
+  public byte[] getBuffer() {
+    return (byte[]) KMType.bufferTable[KM_SEMANTIC_TAG_OFFSET];
+  }
+
+  protected short getBaseOffset() {
+    return instanceTable[KM_SEMANTIC_TAG_OFFSET];
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright(C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cborparser;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * KMSimpleValue represents a CBOR simple value i.e. false, true, null, undefined or any other
+ * value of major type 7. Half, single and double precision floats are decoded as simple values
+ * whose value is the additional info and are only skipped over; their bits can be read from the
+ * buffer.
+ */
+public class KMSimpleValue extends KMType {
+
+  public static final byte FALSE = (byte) 20;
+  public static final byte TRUE = (byte) 21;
+  public static final byte NULL = (byte) 22;
+  public static final byte UNDEFINED = (byte) 23;
+  private static final byte ADD_INFO_BYTE = 24;
+  private static KMSimpleValue prototype;
+  public static byte SIMPLE_VALUE_MAJOR_TYPE = MAJOR_TYPE_SIMPLE_VALUE;
+
+  private KMSimpleValue() {}
+
+  private static KMSimpleValue proto(byte[] buffer, short ptr) {
+    if (prototype == null) {
+      prototype = new KMSimpleValue();
+    }
+    KMType.instanceTable[KM_SIMPLE_VALUE_OFFSET] = ptr;
+    KMType.bufferTable[KM_SIMPLE_VALUE_OFFSET] = buffer;
+    return prototype;
+  }
+
+  public static short exp() {
+    return KMType.exp(SIMPLE_VALUE_MAJOR_TYPE);
+  }
+
+  public static short instance(byte value) {
+    short length = 1;
+    if ((short) (value & 0x00FF) > 23) {
+      length = 2;
+    }
+    short ptr = repository.alloc(length);
+    if (length == 1) {
+      heap[ptr] = (byte) (SIMPLE_VALUE_MAJOR_TYPE | value);
+    } else {
+      heap[ptr] = (byte) (SIMPLE_VALUE_MAJOR_TYPE | ADD_INFO_BYTE);
+      heap[(short) (ptr + 1)] = value;
+    }
+    return ptr;
+  }
+
+  public static KMSimpleValue cast(short ptr) {
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMSimpleValue
+  public static KMSimpleValue cast(byte[] buffer, short ptr) {
+    if (getMajorType(buffer, ptr) != MAJOR_TYPE_SIMPLE_VALUE) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+    return proto(buffer, ptr);
+  }
+
+  public byte getValue() {
+    byte[] buffer = getBuffer();
+    short ptr = getBaseOffset();
+    byte addInfo = descAddInfo(descriptor(buffer[ptr]));
+    if (addInfo == ADD_INFO_BYTE) {
+      return buffer[(short) (ptr + 1)];
+    }
+    return addInfo;
+  }
+
+  public boolean isBoolean() {
+    byte value = getValue();
+    return value == FALSE || value == TRUE;
+  }
+
+  public boolean isNull() {
+    return getValue() == NULL;
+  }
+
+  public short length() {
+    return headerLength(getBaseOffset());
+  }
+
+  public byte[] getBuffer() {
+    return (byte[]) KMType.bufferTable[KM_SIMPLE_VALUE_OFFSET];
+  }
+
+  protected short getBaseOffset() {
+    return instanceTable[KM_SIMPLE_VALUE_OFFSET];
+  }
+}
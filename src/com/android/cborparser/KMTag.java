@@ -49,9 +49,197 @@ public class KMTag extends KMType {
     }
   }
 
+  // Hash of the 32 bit tag id i.e. tagType|tagKey. Tag types only use the upper nibble so it is
+  // folded into the unused upper bits of the tag key before mixing.
+  public static short hash(short tagType, short tagKey) {
+    short h = (short) (tagKey ^ (short) ((short) ((tagType >> 12) & 0x000F) << 11));
+    h = (short) (h * (short) 0x9E37);
+    return (short) ((h ^ ((h >> 7) & 0x01FF)) & 0x7FFF);
+  }
+
   public static boolean isPresent(short params, short tagType, short tagKey) {
-    short tag = KMKeyParameters.findTag(tagType, tagKey, params);
+    return isPresent(heap, params, tagType, tagKey);
+  }
+
+  // Same as isPresent for key parameters at the given offset in the buffer. The presence bitmap
+  // is a side table of the repository, so it is only used for key parameters in the heap.
+  public static boolean isPresent(byte[] buffer, short params, short tagType, short tagKey) {
+    // Key parameters decoded with OPT_TAG_PRESENCE carry a presence bitmap of the known tags.
+    short ordinal = ordinal(tagType, tagKey);
+    if (buffer == heap && ordinal != NO_ORDINAL) {
+      short bitmap = repository.getAttachment(params, KMRepository.TAG_PRESENCE);
+      if (bitmap != KMType.INVALID_VALUE) {
+        return (heap[(short) (bitmap + (short) (ordinal >> 3))] & (byte) (1 << (ordinal & 0x07)))
+            != 0;
+      }
+    }
+    short tag = KMKeyParameters.findTag(tagType, tagKey, buffer, params);
     return tag != KMType.INVALID_VALUE;
   }
 
+  // Tag presence bitmap holds one bit per tag ordinal.
+  public static final short NO_ORDINAL = -1;
+  public static final short TAG_ORDINAL_COUNT = 65;
+  public static final short PRESENCE_BITMAP_SIZE = (short) ((TAG_ORDINAL_COUNT + 7) / 8);
+
+  public static short makePresenceBitmap() {
+    short bitmap = repository.alloc(PRESENCE_BITMAP_SIZE);
+    Util.arrayFillNonAtomic(heap, bitmap, PRESENCE_BITMAP_SIZE, (byte) 0);
+    return bitmap;
+  }
+
+  public static void setPresent(short bitmap, short tagType, short tagKey) {
+    short ordinal = ordinal(tagType, tagKey);
+    if (ordinal != NO_ORDINAL) {
+      short offset = (short) (bitmap + (short) (ordinal >> 3));
+      heap[offset] = (byte) (heap[offset] | (byte) (1 << (ordinal & 0x07)));
+    }
+  }
+
+  // Returns the dense ordinal of a known tag or NO_ORDINAL if the tag is unknown or does not have
+  // the tag type defined for the tag key.
+  public static short ordinal(short tagType, short tagKey) {
+    switch (tagKey) {
+      case KMType.ALGORITHM:
+        return matchOrdinal(tagType, KMType.ENUM_TAG, (short) 0);
+      case KMType.ECCURVE:
+        return matchOrdinal(tagType, KMType.ENUM_TAG, (short) 1);
+      case KMType.BLOB_USAGE_REQ:
+        return matchOrdinal(tagType, KMType.ENUM_TAG, (short) 2);
+      case KMType.USER_AUTH_TYPE:
+        return matchOrdinal(tagType, KMType.ENUM_TAG, (short) 3);
+      case KMType.ORIGIN:
+        return matchOrdinal(tagType, KMType.ENUM_TAG, (short) 4);
+      case KMType.HARDWARE_TYPE:
+        return matchOrdinal(tagType, KMType.ENUM_TAG, (short) 5);
+      case KMType.PURPOSE:
+        return matchOrdinal(tagType, KMType.ENUM_ARRAY_TAG, (short) 6);
+      case KMType.BLOCK_MODE:
+        return matchOrdinal(tagType, KMType.ENUM_ARRAY_TAG, (short) 7);
+      case KMType.DIGEST:
+        return matchOrdinal(tagType, KMType.ENUM_ARRAY_TAG, (short) 8);
+      case KMType.PADDING:
+        return matchOrdinal(tagType, KMType.ENUM_ARRAY_TAG, (short) 9);
+      case KMType.RSA_OAEP_MGF_DIGEST:
+        return matchOrdinal(tagType, KMType.ENUM_ARRAY_TAG, (short) 10);
+      case KMType.KEYSIZE:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 11);
+      case KMType.MIN_MAC_LENGTH:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 12);
+      case KMType.MIN_SEC_BETWEEN_OPS:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 13);
+      case KMType.MAX_USES_PER_BOOT:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 14);
+      case KMType.USERID:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 15);
+      case KMType.AUTH_TIMEOUT:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 16);
+      case KMType.OS_VERSION:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 17);
+      case KMType.OS_PATCH_LEVEL:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 18);
+      case KMType.VENDOR_PATCH_LEVEL:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 19);
+      case KMType.BOOT_PATCH_LEVEL:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 20);
+      case KMType.MAC_LENGTH:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 21);
+      case KMType.USAGE_COUNT_LIMIT:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 22);
+      case KMType.MAX_BOOT_LEVEL:
+        return matchOrdinal(tagType, KMType.UINT_TAG, (short) 23);
+      case KMType.RSA_PUBLIC_EXPONENT:
+        return matchOrdinal(tagType, KMType.ULONG_TAG, (short) 24);
+      case KMType.AUTH_TIMEOUT_MILLIS:
+        return matchOrdinal(tagType, KMType.ULONG_TAG, (short) 25);
+      case KMType.ACTIVE_DATETIME:
+        return matchOrdinal(tagType, KMType.DATE_TAG, (short) 26);
+      case KMType.ORIGINATION_EXPIRE_DATETIME:
+        return matchOrdinal(tagType, KMType.DATE_TAG, (short) 27);
+      case KMType.USAGE_EXPIRE_DATETIME:
+        return matchOrdinal(tagType, KMType.DATE_TAG, (short) 28);
+      case KMType.CREATION_DATETIME:
+        return matchOrdinal(tagType, KMType.DATE_TAG, (short) 29);
+      case KMType.CERTIFICATE_NOT_BEFORE:
+        return matchOrdinal(tagType, KMType.DATE_TAG, (short) 30);
+      case KMType.CERTIFICATE_NOT_AFTER:
+        return matchOrdinal(tagType, KMType.DATE_TAG, (short) 31);
+      case KMType.USER_SECURE_ID:
+        return matchOrdinal(tagType, KMType.ULONG_ARRAY_TAG, (short) 32);
+      case KMType.CALLER_NONCE:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 33);
+      case KMType.INCLUDE_UNIQUE_ID:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 34);
+      case KMType.BOOTLOADER_ONLY:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 35);
+      case KMType.ROLLBACK_RESISTANCE:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 36);
+      case KMType.NO_AUTH_REQUIRED:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 37);
+      case KMType.ALLOW_WHILE_ON_BODY:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 38);
+      case KMType.TRUSTED_USER_PRESENCE_REQUIRED:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 39);
+      case KMType.TRUSTED_CONFIRMATION_REQUIRED:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 40);
+      case KMType.UNLOCKED_DEVICE_REQUIRED:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 41);
+      case KMType.RESET_SINCE_ID_ROTATION:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 42);
+      case KMType.EARLY_BOOT_ONLY:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 43);
+      case KMType.DEVICE_UNIQUE_ATTESTATION:
+        return matchOrdinal(tagType, KMType.BOOL_TAG, (short) 44);
+      case KMType.APPLICATION_ID:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 45);
+      case KMType.APPLICATION_DATA:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 46);
+      case KMType.ROOT_OF_TRUST:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 47);
+      case KMType.UNIQUE_ID:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 48);
+      case KMType.ATTESTATION_CHALLENGE:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 49);
+      case KMType.ATTESTATION_APPLICATION_ID:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 50);
+      case KMType.ATTESTATION_ID_BRAND:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 51);
+      case KMType.ATTESTATION_ID_DEVICE:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 52);
+      case KMType.ATTESTATION_ID_PRODUCT:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 53);
+      case KMType.ATTESTATION_ID_SERIAL:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 54);
+      case KMType.ATTESTATION_ID_IMEI:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 55);
+      case KMType.ATTESTATION_ID_SECOND_IMEI:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 56);
+      case KMType.ATTESTATION_ID_MEID:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 57);
+      case KMType.ATTESTATION_ID_MANUFACTURER:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 58);
+      case KMType.ATTESTATION_ID_MODEL:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 59);
+      case KMType.ASSOCIATED_DATA:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 60);
+      case KMType.NONCE:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 61);
+      case KMType.CONFIRMATION_TOKEN:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 62);
+      case KMType.CERTIFICATE_SUBJECT_NAME:
+        return matchOrdinal(tagType, KMType.BYTES_TAG, (short) 63);
+      case KMType.CERTIFICATE_SERIAL_NUM:
+        return matchOrdinal(tagType, KMType.BIGNUM_TAG, (short) 64);
+      default:
+        return NO_ORDINAL;
+    }
+  }
+
+  private static short matchOrdinal(short tagType, short expectedTagType, short ordinal) {
+    if (tagType != expectedTagType) {
+      return NO_ORDINAL;
+    }
+    return ordinal;
+  }
+
 }
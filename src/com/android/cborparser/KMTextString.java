@@ -0,0 +1,81 @@
+/*
+ * Copyright(C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cborparser;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/**
+ * KMTextString represents a UTF-8 string. It corresponds to CBOR type of Text String, which has
+ * the same layout as a byte string, so all the accessors of KMByteBlob apply. The content is not
+ * checked to be valid UTF-8.
+ */
+public class KMTextString extends KMByteBlob {
+
+  private static KMTextString prototype;
+  public static byte TEXT_STRING_MAJOR_TYPE = MAJOR_TYPE_TEXT_STRING;
+
+  private KMTextString() {}
+
+  private static KMTextString proto(byte[] buffer, short ptr) {
+    if (prototype == null) {
+      prototype = new KMTextString();
+    }
+    KMType.instanceTable[KM_TEXT_STRING_OFFSET] = ptr;
+    KMType.bufferTable[KM_TEXT_STRING_OFFSET] = buffer;
+    return prototype;
+  }
+
+  public static short exp() {
+    return KMType.exp(TEXT_STRING_MAJOR_TYPE);
+  }
+
+  // return an empty text string instance
+  public static short instance(short length) {
+    return toTextString(KMByteBlob.instance(length));
+  }
+
+  // text string from existing buf
+  public static short instance(byte[] buf, short startOff, short length) {
+    return toTextString(KMByteBlob.instance(buf, startOff, length));
+  }
+
+  private static short toTextString(short ptr) {
+    heap[ptr] = (byte) ((heap[ptr] & 0x1F) | TEXT_STRING_MAJOR_TYPE);
+    return ptr;
+  }
+
+  public static KMTextString cast(short ptr) {
+    return cast(repository.getHeap(), ptr);
+  }
+
+  // cast the offset in the given buffer to KMTextString
+  public static KMTextString cast(byte[] buffer, short ptr) {
+    if (getMajorType(buffer, ptr) != MAJOR_TYPE_TEXT_STRING || isIndefinite(buffer, ptr)) {
+      ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+    }
+    return proto(buffer, ptr);
+  }
+
+  public byte[] getBuffer() {
+    return (byte[]) KMType.bufferTable[KM_TEXT_STRING_OFFSET];
+  }
+
+  protected short getBaseOffset() {
+    return instanceTable[KM_TEXT_STRING_OFFSET];
+  }
+}
@@ -34,9 +34,13 @@ public abstract class KMType {
   public static final byte BYTE_BLOB_TYPE = 0x01;
   public static final byte INTEGER_TYPE = 0x02;
   public static final byte MAJOR_TYPE_INT = 0x00;
+  public static final byte MAJOR_TYPE_NEG_INT = 0x20;
   public static final byte MAJOR_TYPE_BYTE_BLOB = 0x40;
+  public static final byte MAJOR_TYPE_TEXT_STRING = 0x60;
   public static final byte MAJOR_TYPE_ARRAY = (byte) 0x80;
   public static final byte MAJOR_TYPE_MAP = (byte) 0xA0;
+  public static final byte MAJOR_TYPE_SEMANTIC_TAG = (byte) 0xC0;
+  public static final byte MAJOR_TYPE_SIMPLE_VALUE = (byte) 0xE0;
   public static final byte ENUM_TYPE = 0x03;
   public static final byte TAG_TYPE = 0x04;
   public static final byte ARRAY_TYPE = 0x05;
@@ -375,11 +379,90 @@ public abstract class KMType {
   protected static KMRepository repository;
   protected static byte[] heap;
   protected static short[] instanceTable;
+  // Buffer of each prototype, parallel to the instance table. A cast binds the prototype to an
+  // offset in a buffer i.e. a view, which is the heap unless the cast names another buffer such
+  // as the APDU buffer or a persistent array. Repository side tables only apply to the heap.
+  protected static Object[] bufferTable;
+  // Initial byte descriptors, one for each of the 256 initial bytes of a CBOR item.
+  // struct{3 bits unused | 3 bits major type | 4 bits header length | 3 bits unused | 5 bits
+  // additional info}. The header length is 0 for the additional info values which are not
+  // supported. For header length 1 the additional info is the inline value, except for
+  // ADD_INFO_INDEFINITE i.e. strings, arrays and maps of indefinite length, which end with a
+  // BREAK byte.
+  protected static final short INITIAL_BYTE_COUNT = 256;
+  protected static final byte DESC_MAJOR_TYPE_SHIFT = 10;
+  protected static final byte DESC_HEADER_LENGTH_SHIFT = 6;
+  protected static final short DESC_MAJOR_TYPE_MASK = 0x07;
+  protected static final short DESC_HEADER_LENGTH_MASK = 0x0F;
+  protected static final short DESC_ADD_INFO_MASK = 0x1F;
+  protected static short[] descriptors;
+  public static final byte ADD_INFO_INDEFINITE = 31;
+  public static final byte BREAK = (byte) 0xFF;
 
   public static void initialize() {
     instanceTable = JCSystem.makeTransientShortArray(INSTANCE_TABLE_SIZE, JCSystem.CLEAR_ON_RESET);
+    bufferTable = JCSystem.makeTransientObjectArray(INSTANCE_TABLE_SIZE, JCSystem.CLEAR_ON_RESET);
     KMType.repository = KMRepository.instance();
     KMType.heap = repository.getHeap();
+    KMCursor.initialize();
+    KMSchema.initialize();
+    if (descriptors == null) {
+      descriptors = new short[INITIAL_BYTE_COUNT];
+      short initialByte = 0;
+      while (initialByte < INITIAL_BYTE_COUNT) {
+        descriptors[initialByte] = makeDescriptor(initialByte);
+        initialByte++;
+      }
+    }
+  }
+
+  private static short makeDescriptor(short initialByte) {
+    short addInfo = (short) (initialByte & 0x1F);
+    short headerLength;
+    if (addInfo <= 23) {
+      headerLength = 1;
+    } else if (addInfo == 24) {
+      headerLength = 2;
+    } else if (addInfo == 25) {
+      headerLength = 3;
+    } else if (addInfo == 26) {
+      headerLength = 5;
+    } else if (addInfo == 27) {
+      headerLength = 9;
+    } else if (addInfo == ADD_INFO_INDEFINITE
+        && ((initialByte >> 5) & DESC_MAJOR_TYPE_MASK) >= 2
+        && ((initialByte >> 5) & DESC_MAJOR_TYPE_MASK) <= 5) {
+      headerLength = 1;
+    } else {
+      headerLength = 0;
+    }
+    return (short) ((short) (((initialByte >> 5) & DESC_MAJOR_TYPE_MASK) << DESC_MAJOR_TYPE_SHIFT)
+        | (short) (headerLength << DESC_HEADER_LENGTH_SHIFT)
+        | addInfo);
+  }
+
+  protected static short descriptor(byte initialByte) {
+    return descriptors[(short) (initialByte & 0xFF)];
+  }
+
+  protected static short descHeaderLength(short desc) {
+    return (short) ((desc >> DESC_HEADER_LENGTH_SHIFT) & DESC_HEADER_LENGTH_MASK);
+  }
+
+  protected static byte descMajorType(short desc) {
+    return (byte) (((desc >> DESC_MAJOR_TYPE_SHIFT) & DESC_MAJOR_TYPE_MASK) << 5);
+  }
+
+  protected static byte descAddInfo(short desc) {
+    return (byte) (desc & DESC_ADD_INFO_MASK);
+  }
+
+  protected static boolean descIndefinite(short desc) {
+    return descHeaderLength(desc) == 1 && descAddInfo(desc) == ADD_INFO_INDEFINITE;
+  }
+
+  public static boolean isIndefinite(byte[] buffer, short ptr) {
+    return descIndefinite(descriptor(buffer[ptr]));
   }
 
   public static byte getType(short ptr) {
@@ -390,6 +473,15 @@ public abstract class KMType {
     return (byte) (heap[exp] & 0xE0);
   }
 
+  public static byte getMajorType(byte[] buffer, short ptr) {
+    return (byte) (buffer[ptr] & 0xE0);
+  }
+
+  // Returns the buffer of the view. Subtypes return the buffer their prototype is bound to.
+  public byte[] getBuffer() {
+    return heap;
+  }
+
   //public static short length(short ptr) {
   //  return Util.getShort(heap, (short) (ptr + 1));
   //}
@@ -422,69 +514,72 @@ public abstract class KMType {
     return ptr;
   }
 
-  private short contentLength(short majorType, short ptr) {
-    short contentLength = 0;
-    switch (majorType) {
-      case KMType.MAJOR_TYPE_INT:
-        contentLength += KMInteger.cast(ptr).length();
-        break;
-      case KMType.MAJOR_TYPE_BYTE_BLOB:
-        contentLength += (short) (KMByteBlob.cast(ptr).headerLength() +
-            KMByteBlob.cast(ptr).length());
-        break;
-      case KMType.MAJOR_TYPE_ARRAY:
-        contentLength += KMArray.cast(ptr).contentLength();
-        break;
-      case KMType.MAJOR_TYPE_MAP:
-        contentLength += KMMap.cast(ptr).contentLength();
-        break;
-      default:
-        ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-        return (short) 0;
-    }
-    return contentLength;
-  }
-
   protected short contentLength(short basePtr, short headerLen, short noOfItems) {
-    short baseMajorType = getMajorType(basePtr);
+    byte[] buffer = getBuffer();
+    short baseMajorType = getMajorType(buffer, basePtr);
     if (baseMajorType != MAJOR_TYPE_ARRAY && baseMajorType != MAJOR_TYPE_MAP) {
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
+    // Subtree lengths are memoized when enabled, so measuring a container again is a single
+    // lookup.
+    boolean memo = buffer == heap && repository.isLengthCacheEnabled();
+    short contentLength = KMType.INVALID_VALUE;
+    if (memo) {
+      contentLength = repository.getCachedLength(basePtr);
+    }
+    if (contentLength != KMType.INVALID_VALUE) {
+      return (short) (contentLength - headerLen);
+    }
     short ptr = (short) (basePtr + headerLen);
-    short contentLength = 0;
+    if (baseMajorType == MAJOR_TYPE_MAP) {
+      // Maps contains pair(key and value). So content length to be incremented for a pair.
+      noOfItems = (short) (noOfItems * 2);
+    }
     for (short i = 0; i < noOfItems; i++) {
-      byte type = KMType.getMajorType(ptr);
-      short cLen = contentLength(type, ptr);
-      ptr += cLen;
-      contentLength += cLen;
-      if (baseMajorType == MAJOR_TYPE_MAP) {
-        // Maps contains pair(key and value). So content length to be incremented for a pair.
-        type = KMType.getMajorType(ptr);
-        cLen = contentLength(type, ptr);
-        ptr += cLen;
-        contentLength += cLen;
-      }
+      ptr = next(ptr);
+    }
+    if (isIndefinite(buffer, basePtr)) {
+      ptr++;
+    }
+    contentLength = (short) (ptr - basePtr - headerLen);
+    if (memo) {
+      repository.cacheLength(basePtr, (short) (headerLen + contentLength));
     }
     return contentLength;
   }
 
   protected short next(short ptr) {
-    byte majorType = KMType.getMajorType(ptr);
-    switch (majorType) {
+    short desc = descriptor(getBuffer()[ptr]);
+    short headerLen = descHeaderLength(desc);
+    if (headerLen == 0) {
+      ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+    }
+    if (descIndefinite(desc)) {
+      // Items, or chunks of a string, follow each other up to the break.
+      ptr++;
+      while (getBuffer()[ptr] != BREAK) {
+        ptr = next(ptr);
+      }
+      return (short) (ptr + 1);
+    }
+    switch (descMajorType(desc)) {
       case KMType.MAJOR_TYPE_INT:
-        ptr += KMInteger.cast(ptr).length();
+      case KMType.MAJOR_TYPE_NEG_INT:
+      case KMType.MAJOR_TYPE_SIMPLE_VALUE:
+        // The value, or the float of a simple value, is in the header.
+        ptr += headerLen;
         break;
       case KMType.MAJOR_TYPE_BYTE_BLOB:
-        ptr += (short) (KMByteBlob.cast(ptr).headerLength() +
-            KMByteBlob.cast(ptr).length());
+      case KMType.MAJOR_TYPE_TEXT_STRING:
+        ptr += (short) (headerLen + length(ptr));
         break;
       case KMType.MAJOR_TYPE_ARRAY:
-        ptr += (short) (KMArray.cast(ptr).headerLength() +
-            KMArray.cast(ptr).contentLength());
-        break;
       case KMType.MAJOR_TYPE_MAP:
-        ptr += (short) (KMMap.cast(ptr).headerLength() +
-            KMMap.cast(ptr).contentLength());
+        ptr += (short) (headerLen + contentLength(ptr, headerLen, length(ptr)));
+        break;
+      case KMType.MAJOR_TYPE_SEMANTIC_TAG:
+        // Skip the tagged item.
+        ptr = next((short) (ptr + headerLen));
         break;
       default:
         ISOException.throwIt(ISO7816.SW_DATA_INVALID);
@@ -494,7 +589,8 @@ public abstract class KMType {
   }
 
   protected short get(short basePtr, short headerLen, short noOfItems, short index) {
-    short majorType = getMajorType(basePtr);
+    byte[] buffer = getBuffer();
+    short majorType = getMajorType(buffer, basePtr);
     if (majorType != MAJOR_TYPE_ARRAY && majorType != MAJOR_TYPE_MAP) {
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
@@ -504,7 +600,18 @@ public abstract class KMType {
     if (index >= noOfItems) {
       ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
     }
-    short ptr = (short) (basePtr + headerLen);
+    // Decoded containers may have their child offsets indexed. Map children are the pairs of
+    // key and value, so the key of the pair is at twice the index.
+    short ptr;
+    if (buffer == heap) {
+      ptr =
+          repository.getChildOffset(
+              basePtr, (majorType == MAJOR_TYPE_MAP) ? (short) (index * 2) : index);
+      if (ptr != KMType.INVALID_VALUE) {
+        return ptr;
+      }
+    }
+    ptr = (short) (basePtr + headerLen);
     for (short i = 0; i < index; i++) {
       ptr = next(ptr);
       if (majorType == MAJOR_TYPE_MAP) {
@@ -515,35 +622,65 @@ public abstract class KMType {
   }
 
   public short length(short basePtr) {
-    byte addInfo = (byte) (heap[basePtr] & 0x1F);
-    if (addInfo == 25) {
-      return Util.getShort(heap, (short) (basePtr+1));
-    } else if (addInfo == 24) {
-      return (short) (heap[(short) (basePtr+1)] & 0x00FF);
-    } else if (addInfo <= 23) {
-      return addInfo;
-    } else {
-      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    byte[] buffer = getBuffer();
+    short desc = descriptor(buffer[basePtr]);
+    switch (descHeaderLength(desc)) {
+      case 1:
+        if (descIndefinite(desc)) {
+          return indefiniteLength(basePtr);
+        }
+        return descAddInfo(desc);
+      case 2:
+        return (short) (buffer[(short) (basePtr + 1)] & 0x00FF);
+      case 3:
+        return Util.getShort(buffer, (short) (basePtr + 1));
+      case 5:
+      case 9:
+        // 32 bit and 64 bit lengths are accepted as long as the value fits in a short.
+        return wideLength(buffer, basePtr, descHeaderLength(desc));
+      default:
+        KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
     return 0;
   }
 
+  // Counts the items of an indefinite length array or map, which takes a walk up to the break.
+  private short indefiniteLength(short basePtr) {
+    byte[] buffer = getBuffer();
+    byte majorType = getMajorType(buffer, basePtr);
+    if (majorType != MAJOR_TYPE_ARRAY && majorType != MAJOR_TYPE_MAP) {
+      KMException.throwIt(KMError.UNKNOWN_ERROR);
+    }
+    short count = 0;
+    short ptr = (short) (basePtr + 1);
+    while (buffer[ptr] != BREAK) {
+      ptr = next(ptr);
+      count++;
+    }
+    return (majorType == MAJOR_TYPE_MAP) ? (short) (count / 2) : count;
+  }
+
+  private static short wideLength(byte[] buffer, short basePtr, short headerLen) {
+    short end = (short) (basePtr + headerLen - 2);
+    short index = (short) (basePtr + 1);
+    while (index < end) {
+      if (buffer[index] != 0) {
+        KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+      }
+      index++;
+    }
+    short length = Util.getShort(buffer, end);
+    if (length < 0) {
+      KMException.throwIt(KMError.INVALID_INPUT_LENGTH);
+    }
+    return length;
+  }
+
   public short headerLength(short basePtr) {
-    //return Util.getShort(heap, (short) (getBaseOffset() + 1));
-    byte addInfo = (byte) (heap[basePtr] & 0x1F);
-    if (addInfo  == 27) {
-      return (short) 9;
-    } else if (addInfo == 26) {
-      return (short) 5;
-    } else if (addInfo == 25) {
-      return (short) 3;
-    } else if (addInfo == 24) {
-      return (short) 2;
-    } else if (addInfo <= 23) {
-      return (short) 1;
-    } else {
+    short headerLen = descHeaderLength(descriptor(getBuffer()[basePtr]));
+    if (headerLen == 0) {
       KMException.throwIt(KMError.UNKNOWN_ERROR);
     }
-    return 0;
+    return headerLen;
   }
 }
@@ -104,47 +104,76 @@ public class KMValidations {
     }
   }
 
-  public static boolean validateEnumArrayTag(short keyPtr, short valuePtr) {
-    short length = KMByteBlob.cast(valuePtr).length();
-    short key = KMInteger.cast(keyPtr).getShort();
+  // Validates a key parameter. Returns KMError.OK, KMError.INVALID_TAG if the tag is not known
+  // for its tag type, or KMError.INVALID_DATA if the value is not allowed for the tag. The value
+  // must be of the major type of the tag type, which the decoder checks before.
+  public static short validateKeyParam(byte[] buffer, short keyPtr, short valuePtr) {
+    switch (KMInteger.cast(buffer, keyPtr).getSignificantShort()) {
+      case KMType.ENUM_TAG:
+        return validateEnumTag(buffer, keyPtr, valuePtr);
+      case KMType.ENUM_ARRAY_TAG:
+        return validateEnumArrayTag(buffer, keyPtr, valuePtr);
+      case KMType.UINT_TAG:
+        return validateUIntTag(buffer, keyPtr, valuePtr);
+      case KMType.ULONG_TAG:
+        return validateULongTag(buffer, keyPtr, valuePtr);
+      case KMType.DATE_TAG:
+        return validateDateTag(buffer, keyPtr, valuePtr);
+      case KMType.UINT_ARRAY_TAG:
+        return KMError.OK;
+      case KMType.ULONG_ARRAY_TAG:
+        return validateULongArrayTag(buffer, keyPtr, valuePtr);
+      case KMType.BOOL_TAG:
+        return validateBoolTag(buffer, keyPtr, valuePtr);
+      case KMType.BIGNUM_TAG:
+        return validateBignumTag(buffer, keyPtr, valuePtr);
+      case KMType.BYTES_TAG:
+        return validateBytesTag(buffer, keyPtr, valuePtr);
+      default:
+        return KMError.OK;
+    }
+  }
+
+  public static short validateEnumArrayTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short length = KMByteBlob.cast(buffer, valuePtr).length();
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
+    boolean valid = true;
+    byte value;
+    for (short i = 0; i < length && valid; i++) {
+      value = KMByteBlob.cast(buffer, valuePtr).get(i);
+      switch (key) {
+        case KMType.PURPOSE:
+          valid = validatePurpose(value);
+          break;
+        case KMType.BLOCK_MODE:
+          valid = validateBlockMode(value);
+          break;
+        case KMType.DIGEST:
+        case KMType.RSA_OAEP_MGF_DIGEST:
+          valid = validateDigest(value);
+          break;
+        case KMType.PADDING:
+          valid = validatePadding(value);
+          break;
+        default:
+          return KMError.INVALID_TAG;
+      }
+    }
     switch (key) {
       case KMType.PURPOSE:
-        for (short i = 0; i < length; i++) {
-          if (!validatePurpose(KMByteBlob.cast(valuePtr).get(i))) {
-            return false;
-          }
-        }
-        return true;
       case KMType.BLOCK_MODE:
-        for (short i = 0; i < length; i++) {
-          if (!validateBlockMode(KMByteBlob.cast(valuePtr).get(i))) {
-            return false;
-          }
-        }
-        return true;
       case KMType.DIGEST:
       case KMType.RSA_OAEP_MGF_DIGEST:
-        for (short i = 0; i < length; i++) {
-          if (!validateDigest(KMByteBlob.cast(valuePtr).get(i))) {
-            return false;
-          }
-        }
-        return true;
       case KMType.PADDING:
-        for (short i = 0; i < length; i++) {
-          if (!validatePadding(KMByteBlob.cast(valuePtr).get(i))) {
-            return false;
-          }
-        }
-        return true;
-
+        return valid ? KMError.OK : KMError.INVALID_DATA;
+      default:
+        return KMError.INVALID_TAG;
     }
-    return false;
   }
 
-  public static boolean validateEnumTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    byte value = KMInteger.cast(valuePtr).getByte();
+  public static short validateEnumTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
+    byte value = KMInteger.cast(buffer, valuePtr).getByte();
     switch (key) {
       case KMType.ALGORITHM: {
         switch (value) {
@@ -153,7 +182,7 @@ public class KMValidations {
           case KMType.EC:
           case KMType.AES:
           case KMType.HMAC:
-            return true;
+            return KMError.OK;
         }
       }
       break;
@@ -164,7 +193,7 @@ public class KMValidations {
           case KMType.P_384:
           case KMType.P_521:
           case KMType.CURVE_25519:
-            return true;
+            return KMError.OK;
         }
       }
       break;
@@ -172,12 +201,12 @@ public class KMValidations {
         switch (value) {
           case KMType.STANDALONE:
           case KMType.REQUIRES_FILE_SYSTEM:
-            return true;
+            return KMError.OK;
         }
       }
       break;
       case KMType.USER_AUTH_TYPE:
-        return validateUserAuthType(value);
+        return validateUserAuthType(value) ? KMError.OK : KMError.INVALID_DATA;
       case KMType.ORIGIN: {
         switch (value) {
           case KMType.GENERATED:
@@ -185,19 +214,20 @@ public class KMValidations {
           case KMType.IMPORTED:
           case KMType.UNKNOWN:
           case KMType.SECURELY_IMPORTED:
-            return true;
+            return KMError.OK;
         }
       }
       break;
       case KMType.HARDWARE_TYPE:
-        return validateHardwareType(value);
+        return validateHardwareType(value) ? KMError.OK : KMError.INVALID_DATA;
+      default:
+        return KMError.INVALID_TAG;
     }
-    return false;
+    return KMError.INVALID_DATA;
   }
 
-  public static boolean validateUIntTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    byte value = KMInteger.cast(valuePtr).getByte();
+  public static short validateUIntTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
     switch (key) {
       case KMType.KEYSIZE:
       case KMType.MIN_MAC_LENGTH:
@@ -210,37 +240,35 @@ public class KMValidations {
       case KMType.VENDOR_PATCH_LEVEL:
       case KMType.BOOT_PATCH_LEVEL:
       case KMType.MAC_LENGTH:
-        return true;
+        return KMError.OK;
       default:
-        return false;
+        return KMError.INVALID_TAG;
     }
   }
 
-  public static boolean validateULongTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    byte value = KMInteger.cast(valuePtr).getByte();
+  public static short validateULongTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
     switch (key) {
       case KMType.RSA_PUBLIC_EXPONENT:
-        return true;
+        return KMError.OK;
       default:
-        return false;
+        return KMError.INVALID_TAG;
     }
   }
 
-  public static boolean validateULongArrayTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    byte value = KMInteger.cast(valuePtr).getByte();
+  public static short validateULongArrayTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
     switch (key) {
       case KMType.USER_SECURE_ID:
-        return true;
+        return KMError.OK;
       default:
-        return false;
+        return KMError.INVALID_TAG;
     }
   }
 
-  public static boolean validateBoolTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    byte value = KMInteger.cast(valuePtr).getByte();
+  public static short validateBoolTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
+    byte value = KMInteger.cast(buffer, valuePtr).getByte();
     switch (key) {
       case KMType.CALLER_NONCE:
       case KMType.INCLUDE_UNIQUE_ID:
@@ -255,31 +283,31 @@ public class KMValidations {
       case KMType.EARLY_BOOT_ONLY:
       case KMType.DEVICE_UNIQUE_ATTESTATION:
         if (value != 0x01) {
-          return false;
+          return KMError.INVALID_DATA;
         }
-        return true;
+        return KMError.OK;
+      default:
+        return KMError.INVALID_TAG;
     }
-    return false;
   }
 
-  public static boolean validateBignumTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    short valueLen = KMByteBlob.cast(valuePtr).length();
+  public static short validateBignumTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
+    short valueLen = KMByteBlob.cast(buffer, valuePtr).length();
     switch (key) {
       case KMType.CERTIFICATE_SERIAL_NUM:
         if (valueLen > KMType.MAX_CERTIFICATE_SERIAL_SIZE) {
-          return false;
+          return KMError.INVALID_DATA;
         }
         break;
       default:
-        return false;
+        return KMError.INVALID_TAG;
     }
-    return true;
+    return KMError.OK;
   }
 
-  public static boolean validateDateTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    byte value = KMInteger.cast(valuePtr).getByte();
+  public static short validateDateTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
     switch (key) {
       case KMType.ACTIVE_DATETIME:
       case KMType.ORIGINATION_EXPIRE_DATETIME:
@@ -290,19 +318,19 @@ public class KMValidations {
       case KMType.USAGE_COUNT_LIMIT:
         // custom tag
       case KMType.AUTH_TIMEOUT_MILLIS:
-        return true;
+        return KMError.OK;
       default:
-        return false;
+        return KMError.INVALID_TAG;
     }
   }
 
-  public static boolean validateBytesTag(short keyPtr, short valuePtr) {
-    short key = KMInteger.cast(keyPtr).getShort();
-    short valueLen = KMByteBlob.cast(valuePtr).length();
+  public static short validateBytesTag(byte[] buffer, short keyPtr, short valuePtr) {
+    short key = KMInteger.cast(buffer, keyPtr).getShort();
+    short valueLen = KMByteBlob.cast(buffer, valuePtr).length();
     switch (key) {
       case KMType.ATTESTATION_APPLICATION_ID:
         if (valueLen > KMType.MAX_ATTESTATION_APP_ID_SIZE) {
-          return false;
+          return KMError.INVALID_DATA;
         }
         break;
       case KMType.CERTIFICATE_SUBJECT_NAME: {
@@ -317,12 +345,12 @@ public class KMValidations {
       case KMType.APPLICATION_ID:
       case KMType.APPLICATION_DATA:
         if (valueLen > KMType.MAX_APP_ID_APP_DATA_SIZE) {
-          return false;
+          return KMError.INVALID_DATA;
         }
         break;
       case KMType.ATTESTATION_CHALLENGE:
         if (valueLen > KMType.MAX_ATTESTATION_CHALLENGE_SIZE) {
-          return false;
+          return KMError.INVALID_DATA;
         }
         break;
       case KMType.ATTESTATION_ID_BRAND:
@@ -342,9 +370,9 @@ public class KMValidations {
       case KMType.NONCE:
         break;
       default:
-        return false;
+        return KMError.INVALID_TAG;
     }
-    return true;
+    return KMError.OK;
   }
 
 }
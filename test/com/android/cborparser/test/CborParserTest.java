@@ -24,15 +24,27 @@ import static com.android.cborparser.KMType.X509;
 
 import com.android.cborparser.KMArray;
 import com.android.cborparser.KMByteBlob;
+import com.android.cborparser.KMCursor;
 import com.android.cborparser.KMDecoder;
+import com.android.cborparser.KMError;
+import com.android.cborparser.KMException;
 import com.android.cborparser.KMInteger;
 import com.android.cborparser.KMKeyParameters;
 import com.android.cborparser.KMMap;
+import com.android.cborparser.KMNInteger;
 import com.android.cborparser.KMRepository;
+import com.android.cborparser.KMSchema;
+import com.android.cborparser.KMSemanticTag;
+import com.android.cborparser.KMSimpleValue;
+import com.android.cborparser.KMTag;
+import com.android.cborparser.KMTextString;
 import com.android.cborparser.KMType;
 import com.licel.jcardsim.smartcardio.CardSimulator;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 import javacard.framework.Util;
 import javacard.security.RandomData;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class CborParserTest {
@@ -41,6 +53,9 @@ public class CborParserTest {
   KMDecoder decoder;
   KMRepository repository;
   KMKeyParameters keyParameters;
+  // Key parameters map with nine entries shared by the tests.
+  private static final String KEY_PARAMS =
+      "A91A10000002011A300000031908001A500000C81A000100011A700001F7011A600003F0001A600003F11B0000E677D21FD8181A200000014202031A2000000541001A200000064101";
 
   public CborParserTest() {
     //cryptoProvider = new KMJCardSimulator();
@@ -118,6 +133,735 @@ public class CborParserTest {
     // print(out, (short) 0, (short) out.length);
   }
 
+  @Test
+  public void testSchema() {
+    // Expression of testArray.
+    short exp = KMArray.instance((short) 3);
+    KMByteBlob.exp();
+    KMInteger.exp();
+    KMArray.instance((short) 2);
+    KMByteBlob.exp();
+    KMInteger.exp();
+    short[] program = new short[32];
+    Assert.assertEquals(18, KMSchema.compile(exp, program, (short) 0));
+    short[] expected = {
+        KMSchema.OP_ARRAY, 3, 18,
+        KMSchema.OP_BYTES, 0, 3,
+        KMSchema.OP_UINT, 0, 3,
+        KMSchema.OP_ARRAY, 2, 9,
+        KMSchema.OP_BYTES, 0, 3,
+        KMSchema.OP_UINT, 0, 3,
+    };
+    for (short i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i], program[i]);
+    }
+    // The rule entry of the key parameters is folded into the instruction.
+    short[] keyParamsProgram = new short[128];
+    short length = KMSchema.compile(KMKeyParameters.expAny(), keyParamsProgram, (short) 0);
+    Assert.assertEquals(KMSchema.OP_KEY_PARAMS, keyParamsProgram[0]);
+    Assert.assertEquals(KMType.IGNORE_INVALID_TAGS, keyParamsProgram[1]);
+    Assert.assertEquals(length, keyParamsProgram[2]);
+    // The values of the two array tag types take an element instruction each.
+    Assert.assertEquals(3 + KMSchema.DISPATCH_TABLE_SIZE + 10 * 6 + 2 * 3, length);
+
+    // A compiled program can be used for any number of decodes.
+    byte[] keyParamsBuf = hexStringToByteArray(KEY_PARAMS);
+    for (short i = 0; i < 2; i++) {
+      short ptr = repository.alloc((short) keyParamsBuf.length);
+      Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr, (short) keyParamsBuf.length);
+      Assert.assertEquals(ptr, decoder.decode(keyParamsProgram, (short) 0, repository.getHeap(), ptr,
+          (short) keyParamsBuf.length));
+      Assert.assertTrue(KMTag.isPresent(ptr, KMType.ENUM_TAG, KMType.ALGORITHM));
+    }
+  }
+
+  @Test
+  public void testProgramSize() {
+    short exp = KMArray.instance((short) 2);
+    KMKeyParameters.exp();
+    KMKeyParameters.exp();
+    short[] program = new short[256];
+    Assert.assertEquals(KMSchema.compile(exp, program, (short) 0), KMSchema.programSize(exp));
+    // The program of the decoder grows to fit the expression.
+    byte[] keyParamsBuf = hexStringToByteArray("82" + KEY_PARAMS + KEY_PARAMS);
+    short ptr = repository.alloc((short) keyParamsBuf.length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr,
+        (short) keyParamsBuf.length);
+    Assert.assertEquals(ptr, decoder.decode(exp, repository.getHeap(), ptr,
+        (short) keyParamsBuf.length));
+    Assert.assertTrue(KMTag.isPresent(KMArray.cast(ptr).get((short) 0), KMType.ENUM_TAG,
+        KMType.ALGORITHM));
+    Assert.assertTrue(KMTag.isPresent(KMArray.cast(ptr).get((short) 1), KMType.ENUM_TAG,
+        KMType.ALGORITHM));
+  }
+
+  @Test
+  public void testTagTypeDispatch() {
+    short[] program = new short[128];
+    KMSchema.compile(KMKeyParameters.exp(), program, (short) 0);
+    short keyPc = KMSchema.dispatch(program, (short) 0, KMType.UINT_TAG);
+    Assert.assertEquals(KMSchema.OP_UINT, program[keyPc]);
+    Assert.assertEquals(KMType.UINT_TAG, program[(short) (keyPc + KMSchema.ARG)]);
+    // Value of UINT_ARRAY_TAG is an array of integers.
+    keyPc = KMSchema.dispatch(program, (short) 0, KMType.UINT_ARRAY_TAG);
+    Assert.assertEquals(KMSchema.OP_ARRAY_OF, program[KMSchema.skip(program, keyPc)]);
+    Assert.assertEquals(KMType.INVALID_VALUE, KMSchema.dispatch(program, (short) 0, (short) 0xB000));
+    Assert.assertEquals(KMType.INVALID_VALUE, KMSchema.dispatch(program, (short) 0, (short) 0x1001));
+
+    // Tag type 0xB000 is not allowed.
+    byte[] keyParamsBuf = hexStringToByteArray("A11AB000000201");
+    short ptr = repository.alloc((short) keyParamsBuf.length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr, (short) keyParamsBuf.length);
+    try {
+      decoder.decode(program, (short) 0, repository.getHeap(), ptr, (short) keyParamsBuf.length);
+      Assert.fail();
+    } catch (KMException e) {
+      Assert.assertEquals(KMError.INVALID_TAG, KMException.reason());
+    }
+  }
+
+  @Test
+  public void testIgnoreInvalidTags() {
+    // {0xB0000002: 1, KEYSIZE: 2048, 0x30000FFF: 1} where the tag type 0xB000 and the UINT tag
+    // 0x0FFF do not exist.
+    byte[] keyParamsBuf = hexStringToByteArray("A31AB0000002011A300000031908001A30000FFF01");
+    short length = (short) keyParamsBuf.length;
+    short ptr = repository.alloc(length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr, length);
+    // Invalid tags are skipped.
+    Assert.assertEquals(ptr,
+        decoder.decode(KMKeyParameters.expAny(), repository.getHeap(), ptr, length));
+    Assert.assertEquals(3, KMMap.cast(ptr).length());
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.UINT_TAG, KMType.KEYSIZE));
+    // Or fail the decode.
+    try {
+      decoder.decode(KMKeyParameters.exp(), repository.getHeap(), ptr, length);
+      Assert.fail();
+    } catch (KMException e) {
+      Assert.assertEquals(KMError.INVALID_TAG, KMException.reason());
+    }
+    keyParamsBuf[1] = 0x1A;
+    keyParamsBuf[2] = 0x30;
+    keyParamsBuf[3] = 0x00;
+    keyParamsBuf[4] = 0x0F;
+    keyParamsBuf[5] = (byte) 0xFF;
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr, length);
+    // An unknown tag of a known tag type is an invalid value.
+    try {
+      decoder.decode(KMKeyParameters.exp(), repository.getHeap(), ptr, length);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+    }
+  }
+
+  @Test
+  public void testStreamDecode() {
+    byte[] keyParamsBuf = hexStringToByteArray(KEY_PARAMS);
+    short length = (short) keyParamsBuf.length;
+    short ptr = repository.alloc(length);
+    decoder.startStream(KMKeyParameters.exp(), repository.getHeap(), ptr, length);
+    short result = KMDecoder.NEED_MORE_DATA;
+    // Chunks split the headers and the values of the tags at various points.
+    for (short off = 0; off < length; off += 7) {
+      Assert.assertEquals(KMDecoder.NEED_MORE_DATA, result);
+      result = decoder.decodeChunk(keyParamsBuf, off, (short) Math.min(7, length - off));
+    }
+    Assert.assertEquals(ptr, result);
+    Assert.assertEquals(9, KMMap.cast(ptr).length());
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT));
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.ENUM_ARRAY_TAG, KMType.PADDING));
+    // The stream is done.
+    try {
+      decoder.decodeChunk(keyParamsBuf, (short) 0, (short) 1);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, e.getReason());
+    }
+
+    // Bytes which follow the item are rejected.
+    decoder.startStream(KMKeyParameters.exp(), repository.getHeap(), ptr, length);
+    Assert.assertEquals(KMDecoder.NEED_MORE_DATA,
+        decoder.decodeChunk(keyParamsBuf, (short) 0, (short) (length - 1)));
+    byte[] trailing = {keyParamsBuf[(short) (length - 1)], 0x00};
+    try {
+      decoder.decodeChunk(trailing, (short) 0, (short) trailing.length);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_WRONG_LENGTH, e.getReason());
+    }
+
+    // Skipped items are kept as they are, so a streamed decode gives the same item as a decode of
+    // the whole input. {0xB0000002: 1, KEYSIZE: 2048, 0x30000FFF: 1} has ignored tags.
+    keyParamsBuf = hexStringToByteArray("A31AB0000002011A300000031908001A30000FFF01");
+    length = (short) keyParamsBuf.length;
+    short whole = repository.alloc(length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), whole, length);
+    Assert.assertEquals(whole,
+        decoder.decode(KMKeyParameters.expAny(), repository.getHeap(), whole, length));
+    ptr = repository.alloc(length);
+    decoder.startStream(KMKeyParameters.expAny(), repository.getHeap(), ptr, length);
+    result = KMDecoder.NEED_MORE_DATA;
+    for (short off = 0; off < length; off += 4) {
+      Assert.assertEquals(KMDecoder.NEED_MORE_DATA, result);
+      result = decoder.decodeChunk(keyParamsBuf, off, (short) Math.min(4, length - off));
+    }
+    Assert.assertEquals(ptr, result);
+    Assert.assertEquals(0,
+        Util.arrayCompare(repository.getHeap(), whole, repository.getHeap(), ptr, length));
+    byte[] scratchPad = new byte[64];
+    short count = KMKeyParameters.makeKeyParameters(KMKeyParameters.SB_ENFORCED, whole, scratchPad);
+    Assert.assertEquals(1, count);
+    Assert.assertEquals(count,
+        KMKeyParameters.makeKeyParameters(KMKeyParameters.SB_ENFORCED, ptr, scratchPad));
+    Assert.assertEquals(2048, KMInteger.cast(
+        KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, ptr)).getShort());
+  }
+
+  @Test
+  public void testMajorTypes() {
+    // [-100, "abc", true, 1(1593835520), 1.0 as half float, -65537 as uint64, h'0102' with a 32 bit
+    // length]
+    byte[] input = new byte[] {(byte) 0x87, 0x38, 0x63, 0x63, 0x61, 0x62, 0x63, (byte) 0xF5,
+        (byte) 0xC1, 0x1A, 0x5F, 0x00, 0x00, 0x00, (byte) 0xF9, 0x3C, 0x00,
+        0x3B, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00,
+        0x5A, 0x00, 0x00, 0x00, 0x02, 0x01, 0x02};
+    short exp = KMArray.instance((short) 7);
+    KMNInteger.exp();
+    KMTextString.exp();
+    KMSimpleValue.exp();
+    KMSemanticTag.exp((short) 1);
+    KMInteger.exp();
+    KMSimpleValue.exp();
+    KMNInteger.exp();
+    KMByteBlob.exp();
+    short ptr = decoder.decode(exp, input, (short) 0, (short) input.length);
+    KMArray arr = KMArray.cast(input, ptr);
+    Assert.assertEquals(7, arr.length());
+    Assert.assertEquals(0x63, KMNInteger.cast(input, arr.get((short) 0)).getShort());
+    short text = KMArray.cast(input, ptr).get((short) 1);
+    Assert.assertEquals(3, KMTextString.cast(input, text).length());
+    Assert.assertEquals('c', KMTextString.cast(input, text).get((short) 2));
+    Assert.assertTrue(
+        KMSimpleValue.cast(input, KMArray.cast(input, ptr).get((short) 2)).getValue()
+            == KMSimpleValue.TRUE);
+    KMSemanticTag tag = KMSemanticTag.cast(input, KMArray.cast(input, ptr).get((short) 3));
+    Assert.assertEquals(1, tag.getTag());
+    Assert.assertEquals(0x5F00, KMInteger.cast(input, tag.getValuePtr()).getSignificantShort());
+    Assert.assertEquals(3, KMSimpleValue.cast(input, KMArray.cast(input, ptr).get((short) 4))
+        .length());
+    Assert.assertEquals(1,
+        KMNInteger.cast(input, KMArray.cast(input, ptr).get((short) 5)).getSignificantShort());
+    // The negative integer reads its own bytes, not the ones of the last integer cast.
+    short nint = KMArray.cast(input, ptr).get((short) 5);
+    KMInteger.cast(input, tag.getValuePtr());
+    byte[] littleEndian = new byte[8];
+    Assert.assertEquals(8, KMNInteger.cast(input, nint).toLittleEndian(littleEndian, (short) 0));
+    Assert.assertEquals(0, Util.arrayCompare(new byte[] {0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00,
+        0x00}, (short) 0, littleEndian, (short) 0, (short) 8));
+    short blob = KMArray.cast(input, ptr).get((short) 6);
+    Assert.assertEquals(2, KMByteBlob.cast(input, blob).length());
+    Assert.assertEquals(2, KMByteBlob.cast(input, blob).get((short) 1));
+
+    // Tag numbers of the expression are checked.
+    input[8] = (byte) 0xC2;
+    try {
+      decoder.decode(exp, input, (short) 0, (short) input.length);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+    }
+  }
+
+  @Test
+  public void testIndefiniteLength() {
+    // [_ {_ 1: (_ h'01', h'0203')}, 5] followed by 0x17
+    byte[] input = new byte[] {(byte) 0x9F, (byte) 0xBF, 0x01, 0x5F, 0x41, 0x01, 0x42, 0x02, 0x03,
+        (byte) 0xFF, (byte) 0xFF, 0x05, (byte) 0xFF, 0x17};
+    short exp = KMArray.instance((short) 2);
+    KMMap.instance((short) 1);
+    KMInteger.exp();
+    KMByteBlob.exp();
+    KMInteger.exp();
+    byte[] buf = new byte[input.length];
+    Util.arrayCopyNonAtomic(input, (short) 0, buf, (short) 0, (short) input.length);
+    short ptr = decoder.decode(exp, buf, (short) 0, (short) buf.length);
+    // Views walk indefinite length containers up to their break.
+    Assert.assertEquals(2, KMArray.cast(buf, ptr).length());
+    Assert.assertEquals(13, KMArray.cast(buf, ptr).headerLength()
+        + KMArray.cast(buf, ptr).contentLength());
+    short map = KMArray.cast(buf, ptr).get((short) 0);
+    Assert.assertEquals(1, KMMap.cast(buf, map).length());
+    Assert.assertEquals(5, KMInteger.cast(buf, KMArray.cast(buf, ptr).get((short) 1)).getShort());
+
+    // Normalized in place to [{1: h'010203'}, 5].
+    decoder.setOptions(KMDecoder.OPT_NORMALIZE_INDEFINITE);
+    ptr = decoder.decode(exp, buf, (short) 0, (short) buf.length);
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    byte[] expected = new byte[] {(byte) 0x82, (byte) 0xA1, 0x01, 0x43, 0x01, 0x02, 0x03, 0x05,
+        0x17};
+    Assert.assertEquals(0, Util.arrayCompare(expected, (short) 0, buf, ptr,
+        (short) expected.length));
+
+    // [_ 0 x 300] is left indefinite, as its definite header does not fit.
+    buf = new byte[302];
+    buf[0] = (byte) 0x9F;
+    buf[301] = (byte) 0xFF;
+    exp = KMSchema.arrayOfExp();
+    KMInteger.exp();
+    decoder.setOptions(KMDecoder.OPT_NORMALIZE_INDEFINITE);
+    ptr = decoder.decode(exp, buf, (short) 0, (short) buf.length);
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    Assert.assertEquals((byte) 0x9F, buf[ptr]);
+    Assert.assertEquals(300, KMArray.cast(buf, ptr).length());
+
+    // A break between a key and its value is invalid.
+    input = new byte[] {(byte) 0xBF, 0x01, (byte) 0xFF};
+    exp = KMMap.instance((short) 1);
+    KMInteger.exp();
+    KMInteger.exp();
+    try {
+      decoder.decode(exp, input, (short) 0, (short) input.length);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+    }
+  }
+
+  @Test
+  public void testNormalizeReleasesSideTables() {
+    // [_ 0 x 23, [], [1, 2], 5] has 26 children, so its definite header is two bytes long and
+    // its content moves up by one byte.
+    byte[] input = hexStringToByteArray(
+        "9F" + "0000000000000000000000000000000000000000000000" + "80" + "820102" + "05" + "FF");
+    byte[] options = {
+        (byte) (KMDecoder.OPT_CACHE_LENGTHS | KMDecoder.OPT_NORMALIZE_INDEFINITE),
+        (byte) (KMDecoder.OPT_INDEX_CHILDREN | KMDecoder.OPT_NORMALIZE_INDEFINITE)};
+    for (short i = 0; i < (short) options.length; i++) {
+      short exp = KMArray.instance((short) 26);
+      for (short j = 0; j < 23; j++) {
+        KMInteger.exp();
+      }
+      KMArray.instance((short) 0);
+      KMArray.instance((short) 2);
+      KMInteger.exp();
+      KMInteger.exp();
+      KMInteger.exp();
+      short ptr = repository.alloc((short) input.length);
+      Util.arrayCopyNonAtomic(input, (short) 0, repository.getHeap(), ptr, (short) input.length);
+      decoder.setOptions(options[i]);
+      ptr = decoder.decode(exp, repository.getHeap(), ptr, (short) input.length);
+      Assert.assertEquals(26, KMArray.cast(ptr).length());
+      short nested = KMArray.cast(ptr).get((short) 24);
+      Assert.assertEquals((short) (ptr + 26), nested);
+      Assert.assertEquals(2, KMArray.cast(nested).length());
+      Assert.assertEquals(5, KMInteger.cast(KMArray.cast(ptr).get((short) 25)).getShort());
+      decoder.setOptions(KMDecoder.OPT_NONE);
+    }
+  }
+
+  @Test
+  public void testCanonicalDecode() {
+    // KEY_PARAMS in canonical order.
+    byte[] keyParamsBuf = hexStringToByteArray("A91A10000002011A200000014202031A2000000541001A20000006"
+        + "41011A300000031908001A500000C81A000100011A600003F0001A600003F11B0000E677D21FD8181A700001F701");
+    short length = (short) keyParamsBuf.length;
+    short ptr = repository.alloc(length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr, length);
+    decoder.setOptions(KMDecoder.OPT_CANONICAL);
+    ptr = decoder.decode(KMKeyParameters.exp(), repository.getHeap(), ptr, length);
+    // Verified maps are indexed and searched using binary search without sorting them.
+    Assert.assertTrue(KMMap.cast(ptr).isCanonical());
+    Assert.assertEquals(KMMap.cast(ptr).getKey((short) 0), repository.getChildOffset(ptr, (short) 0));
+    short value = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, ptr);
+    Assert.assertEquals(2048, KMInteger.cast(value).getShort());
+    // Without the index the scan stops at the first key which sorts after the tag.
+    repository.releaseItemSideTables(ptr, (short) (ptr + 1));
+    repository.attach(ptr, KMRepository.CANONICAL, (short) 0);
+    Assert.assertEquals(KMType.INVALID_VALUE, repository.getChildOffset(ptr, (short) 0));
+    Assert.assertEquals(value, KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, ptr));
+    Assert.assertEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.UINT_TAG, KMType.MIN_MAC_LENGTH, ptr));
+
+    // Keys out of order, duplicate keys and integers which are not in their shortest encoding.
+    String[] invalid = {"A203040102", "A201020103", "A1180102", "A20102031900FF"};
+    short exp = KMMap.instance((short) 2);
+    KMInteger.exp();
+    KMInteger.exp();
+    KMInteger.exp();
+    KMInteger.exp();
+    for (String input : invalid) {
+      byte[] buf = hexStringToByteArray(input);
+      try {
+        decoder.decode(exp, buf, (short) 0, (short) buf.length);
+        Assert.fail();
+      } catch (ISOException e) {
+        Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+      }
+    }
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    byte[] buf = hexStringToByteArray(invalid[0]);
+    Assert.assertEquals(0, decoder.decode(exp, buf, (short) 0, (short) buf.length));
+    buf = hexStringToByteArray(invalid[3]);
+    Assert.assertEquals(0, decoder.decode(exp, buf, (short) 0, (short) buf.length));
+  }
+
+  @Test
+  public void testArrayOf() {
+    // 30 integers, which one element expression matches.
+    byte[] input = new byte[32];
+    input[0] = (byte) 0x98;
+    input[1] = 30;
+    for (short i = 0; i < 30; i++) {
+      input[(short) (i + 2)] = (byte) (i % 24);
+    }
+    short exp = KMSchema.arrayOfExp();
+    KMInteger.exp();
+    Assert.assertEquals(0, decoder.decode(exp, input, (short) 0, (short) input.length));
+    Assert.assertEquals(30, KMArray.cast(input, (short) 0).length());
+    input[31] = 0x40;
+    try {
+      decoder.decode(exp, input, (short) 0, (short) input.length);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, e.getReason());
+    }
+
+    // Secure ids of key parameters are an array of any length.
+    byte[] keyParamsBuf = hexStringToByteArray("A21AA00001F683010203" + "1AA00001F680");
+    short ptr = repository.alloc((short) keyParamsBuf.length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr,
+        (short) keyParamsBuf.length);
+    Assert.assertEquals(ptr, decoder.decode(KMKeyParameters.exp(), repository.getHeap(), ptr,
+        (short) keyParamsBuf.length));
+    short ids = KMKeyParameters.findTag(KMType.ULONG_ARRAY_TAG, KMType.USER_SECURE_ID, ptr);
+    Assert.assertEquals(3, KMArray.cast(ids).length());
+  }
+
+  @Test
+  public void testOneOf() {
+    // [int / bstr, int / null]
+    short exp = KMArray.instance((short) 2);
+    KMSchema.oneOfExp((short) 2);
+    KMInteger.exp();
+    KMByteBlob.exp();
+    KMSchema.oneOfExp((short) 2);
+    KMInteger.exp();
+    KMSimpleValue.instance(KMSimpleValue.NULL);
+    short[] program = new short[32];
+    KMSchema.compile(exp, program, (short) 0);
+    Assert.assertEquals(KMSchema.OP_ONE_OF, program[3]);
+    Assert.assertEquals(0x05, program[4]);
+    Assert.assertEquals(0x81, program[(short) (KMSchema.skip(program, (short) 3) + 1)]);
+
+    byte[] input = new byte[] {(byte) 0x82, 0x05, (byte) 0xF6};
+    Assert.assertEquals(0, decoder.decode(exp, input, (short) 0, (short) input.length));
+    Assert.assertTrue(
+        KMSimpleValue.cast(input, KMArray.cast(input, (short) 0).get((short) 1)).isNull());
+    input = new byte[] {(byte) 0x82, 0x41, 0x01, 0x07};
+    Assert.assertEquals(0, decoder.decode(exp, input, (short) 0, (short) input.length));
+    Assert.assertEquals(7,
+        KMInteger.cast(input, KMArray.cast(input, (short) 0).get((short) 1)).getShort());
+    // No alternative takes a text string.
+    input = new byte[] {(byte) 0x82, 0x61, 0x61, 0x07};
+    try {
+      decoder.decode(exp, input, (short) 0, (short) input.length);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, e.getReason());
+    }
+  }
+
+  @Test
+  public void testOptionalElements() {
+    // [int, ? bstr, ? int]
+    short exp = KMArray.instance((short) 3);
+    KMInteger.exp();
+    KMSchema.optionalExp();
+    KMByteBlob.exp();
+    KMSchema.optionalExp();
+    KMInteger.exp();
+    byte[][] valid = {{(byte) 0x81, 0x01}, {(byte) 0x82, 0x01, 0x40},
+        {(byte) 0x83, 0x01, 0x40, 0x02}, {(byte) 0x9F, 0x01, 0x40, (byte) 0xFF}};
+    for (byte[] input : valid) {
+      Assert.assertEquals(0, decoder.decode(exp, input, (short) 0, (short) input.length));
+    }
+    byte[][] invalid = {{(byte) 0x80}, {(byte) 0x84, 0x01, 0x40, 0x02, 0x03},
+        {(byte) 0x9F, (byte) 0xFF}};
+    for (byte[] input : invalid) {
+      try {
+        decoder.decode(exp, input, (short) 0, (short) input.length);
+        Assert.fail();
+      } catch (ISOException e) {
+        Assert.assertEquals(ISO7816.SW_WRONG_LENGTH, e.getReason());
+      }
+    }
+    // Required elements may not follow optional ones.
+    exp = KMArray.instance((short) 2);
+    KMSchema.optionalExp();
+    KMInteger.exp();
+    KMInteger.exp();
+    try {
+      KMSchema.compile(exp, new short[32], (short) 0);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+    }
+    // The counts of an array take a byte each.
+    exp = KMArray.instance(KMSchema.MAX_ELEMENTS);
+    for (short i = 0; i < KMSchema.MAX_ELEMENTS; i++) {
+      KMInteger.exp();
+    }
+    Assert.assertEquals((KMSchema.MAX_ELEMENTS + 1) * KMSchema.INSTRUCTION_SIZE,
+        KMSchema.programSize(exp));
+    exp = KMArray.instance((short) (KMSchema.MAX_ELEMENTS + 1));
+    for (short i = 0; i <= KMSchema.MAX_ELEMENTS; i++) {
+      KMInteger.exp();
+    }
+    try {
+      KMSchema.programSize(exp);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_WRONG_LENGTH, e.getReason());
+    }
+  }
+
+  @Test
+  public void testScan() {
+    byte[] input = hexStringToByteArray(KEY_PARAMS + "00");
+    short heapIndex = repository.getHeapIndex();
+    Assert.assertEquals(input.length - 1, decoder.scan(input, (short) 0, (short) input.length));
+    // The map, its 9 keys and its 9 values.
+    Assert.assertEquals(19, decoder.getItemCount());
+    Assert.assertEquals(heapIndex, repository.getHeapIndex());
+    input = hexStringToByteArray("9F5F41014102FF817F6161FFF820FF");
+    Assert.assertEquals(input.length, decoder.scan(input, (short) 0, (short) input.length));
+
+    // Truncated string, reserved additional information, text chunk in a byte string, two byte
+    // simple value below 32, break between a key and its value, length which no input can hold.
+    String[] malformed = {"430102", "1C", "5F6161FF", "F810", "BF01FF", "5A0001000000"};
+    for (String str : malformed) {
+      input = hexStringToByteArray(str);
+      try {
+        decoder.scan(input, (short) 0, (short) input.length);
+        Assert.fail();
+      } catch (ISOException e) {
+        Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+      }
+    }
+  }
+
+  @Test
+  public void testProjection() {
+    // [5, {1: h'00', 2: h'0102'}, 7] where 5 and h'00' do not match the expression.
+    byte[] input = new byte[] {(byte) 0x83, 0x05, (byte) 0xA2, 0x01, 0x41, 0x00, 0x02, 0x42, 0x01,
+        0x02, 0x07};
+    short exp = KMArray.instance((short) 3);
+    KMByteBlob.exp();
+    KMMap.instance((short) 2);
+    KMInteger.exp();
+    KMInteger.exp();
+    KMInteger.exp();
+    KMByteBlob.exp();
+    KMInteger.exp();
+    try {
+      decoder.decode(exp, input, (short) 0, (short) input.length);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, e.getReason());
+    }
+    // Only the value of the second entry of element 1 is decoded.
+    short[] paths = {2, 1, 1};
+    short ptr = decoder.decode(exp, paths, (short) 0, (short) paths.length, input, (short) 0,
+        (short) input.length);
+    short map = KMArray.cast(input, ptr).get((short) 1);
+    Assert.assertEquals(2, KMByteBlob.cast(input, KMMap.cast(input, map).getKeyValue((short) 1))
+        .length());
+
+    // Skip marker in the expression.
+    exp = KMArray.instance((short) 3);
+    KMSchema.skipExp();
+    KMSchema.skipExp();
+    KMInteger.exp();
+    Assert.assertEquals(ptr, decoder.decode(exp, input, (short) 0, (short) input.length));
+
+    // Key parameters projected on the enum array tags, with an invalid algorithm.
+    byte[] keyParamsBuf = hexStringToByteArray(KEY_PARAMS);
+    keyParamsBuf[6] = 0x17;
+    paths = new short[] {1, KMType.ENUM_ARRAY_TAG};
+    ptr = repository.alloc((short) keyParamsBuf.length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr,
+        (short) keyParamsBuf.length);
+    Assert.assertEquals(ptr, decoder.decode(KMKeyParameters.exp(), paths, (short) 0,
+        (short) paths.length, repository.getHeap(), ptr, (short) keyParamsBuf.length));
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.ENUM_ARRAY_TAG, KMType.PURPOSE));
+  }
+
+  @Test
+  public void testSequence() {
+    // 1, 100, 256
+    byte[] input = new byte[] {0x01, 0x18, 0x64, 0x19, 0x01, 0x00};
+    short[] offsets = new short[4];
+    Assert.assertEquals(3, decoder.decodeSequence(KMInteger.exp(), input, (short) 0,
+        (short) input.length, offsets, (short) 1));
+    Assert.assertEquals(0, offsets[1]);
+    Assert.assertEquals(1, offsets[2]);
+    Assert.assertEquals(3, offsets[3]);
+    Assert.assertEquals(256, KMInteger.cast(input, offsets[3]).getShort());
+
+    // 5, h'0102', [1, 2]
+    input = new byte[] {0x05, 0x42, 0x01, 0x02, (byte) 0x82, 0x01, 0x02};
+    short[] exps = new short[3];
+    exps[0] = KMInteger.exp();
+    exps[1] = KMByteBlob.exp();
+    exps[2] = KMArray.instance((short) 2);
+    KMInteger.exp();
+    KMInteger.exp();
+    Assert.assertEquals(3, decoder.decodeSequence(exps, (short) 0, (short) 3, input, (short) 0,
+        (short) input.length, offsets, (short) 0));
+    Assert.assertEquals(0, offsets[0]);
+    Assert.assertEquals(1, offsets[1]);
+    Assert.assertEquals(4, offsets[2]);
+    Assert.assertEquals(2, KMArray.cast(input, offsets[2]).length());
+    // Items of the sequence must take the whole input.
+    try {
+      decoder.decodeSequence(exps, (short) 0, (short) 2, input, (short) 0, (short) input.length,
+          offsets, (short) 0);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+    }
+    // The offsets must have room for an item of each expression.
+    try {
+      decoder.decodeSequence(exps, (short) 0, (short) 3, input, (short) 0, (short) input.length,
+          offsets, (short) 2);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_WRONG_LENGTH, e.getReason());
+    }
+
+    // Key parameters, key parameters, 5
+    input = hexStringToByteArray(KEY_PARAMS + KEY_PARAMS + "05");
+    exps[0] = KMKeyParameters.exp();
+    exps[1] = KMKeyParameters.expAny();
+    exps[2] = KMInteger.exp();
+    short ptr = repository.alloc((short) input.length);
+    Util.arrayCopyNonAtomic(input, (short) 0, repository.getHeap(), ptr, (short) input.length);
+    Assert.assertEquals(3, decoder.decodeSequence(exps, (short) 0, (short) 3,
+        repository.getHeap(), ptr, (short) input.length, offsets, (short) 0));
+    Assert.assertEquals(ptr, offsets[0]);
+    Assert.assertEquals(ptr + input.length / 2, offsets[1]);
+    Assert.assertTrue(KMTag.isPresent(offsets[0], KMType.ENUM_TAG, KMType.ALGORITHM));
+    Assert.assertTrue(KMTag.isPresent(offsets[1], KMType.ENUM_TAG, KMType.ALGORITHM));
+    Assert.assertEquals(5, KMInteger.cast(offsets[2]).getShort());
+  }
+
+  @Test
+  public void testZeroCopyDecode() {
+    byte[] keyParamsBuf = hexStringToByteArray(KEY_PARAMS);
+    short exp = KMKeyParameters.expAny();
+    short heapIndex = repository.getHeapIndex();
+    // The command buffer is decoded in place, without copying it into the heap.
+    short ptr = decoder.decode(exp, keyParamsBuf, (short) 0,
+        (short) keyParamsBuf.length);
+    Assert.assertEquals(0, ptr);
+    // Nothing is allocated in the heap.
+    Assert.assertEquals(heapIndex, repository.getHeapIndex());
+    KMMap map = KMMap.cast(keyParamsBuf, ptr);
+    Assert.assertEquals(9, map.length());
+    short key = map.getKey((short) 1);
+    Assert.assertEquals(KMType.KEYSIZE, KMInteger.cast(keyParamsBuf, key).getShort());
+    Assert.assertEquals(2048,
+        KMInteger.cast(keyParamsBuf, KMMap.cast(keyParamsBuf, ptr).getKeyValue((short) 1))
+            .getShort());
+    short blob = KMMap.cast(keyParamsBuf, ptr).getKeyValue((short) 6);
+    Assert.assertEquals(2, KMByteBlob.cast(keyParamsBuf, blob).length());
+    Assert.assertEquals(2, KMByteBlob.cast(keyParamsBuf, blob).get((short) 0));
+    // Tags are looked up in the buffer of the key parameters.
+    Assert.assertTrue(KMTag.isPresent(keyParamsBuf, ptr, KMType.ENUM_TAG, KMType.ALGORITHM));
+    Assert.assertFalse(KMTag.isPresent(keyParamsBuf, ptr, KMType.ENUM_TAG, KMType.ECCURVE));
+    short keySize = KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, keyParamsBuf, ptr);
+    Assert.assertEquals(2048, KMInteger.cast(keyParamsBuf, keySize).getShort());
+    short[] tags = {KMType.ENUM_TAG, KMType.ALGORITHM, KMType.UINT_TAG, KMType.KEYSIZE};
+    short[] values = new short[2];
+    Assert.assertEquals(2, KMKeyParameters.findTags(tags, keyParamsBuf, ptr, values));
+    Assert.assertEquals(keySize, values[1]);
+  }
+
+  @Test
+  public void testDecoderStack() {
+    // Arrays nested up to the depth of the decoder stack are decoded.
+    short ptr = decodeNestedArrays((short) 8);
+    Assert.assertEquals(9, KMArray.cast(ptr).headerLength() + KMArray.cast(ptr).contentLength());
+    try {
+      decodeNestedArrays((short) 9);
+      Assert.fail();
+    } catch (ISOException e) {
+      Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+    }
+    // A failed decode does not leave frames behind.
+    ptr = decodeNestedArrays((short) 8);
+    for (short i = 0; i < 8; i++) {
+      ptr = KMArray.cast(ptr).get((short) 0);
+    }
+    Assert.assertEquals(5, KMInteger.cast(ptr).getShort());
+  }
+
+  // Copies KEY_PARAMS into the heap and decodes them in place.
+  private short decodeKeyParams(short exp) {
+    byte[] keyParamsBuf = hexStringToByteArray(KEY_PARAMS);
+    short ptr = repository.alloc((short) keyParamsBuf.length);
+    Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr,
+        (short) keyParamsBuf.length);
+    return decoder.decode(exp, repository.getHeap(), ptr, (short) keyParamsBuf.length);
+  }
+
+  private short decodeNestedArrays(short depth) {
+    short exp = KMArray.instance((short) 1);
+    for (short i = 1; i < depth; i++) {
+      KMArray.instance((short) 1);
+    }
+    KMInteger.exp();
+    byte[] cbor = new byte[(short) (depth + 1)];
+    Util.arrayFillNonAtomic(cbor, (short) 0, depth, (byte) 0x81);
+    cbor[depth] = 0x05;
+    short ptr = repository.alloc((short) cbor.length);
+    Util.arrayCopyNonAtomic(cbor, (short) 0, repository.getHeap(), ptr, (short) cbor.length);
+    return decoder.decode(exp, repository.getHeap(), ptr, (short) cbor.length);
+  }
+
+  @Test
+  public void testSubtreeLengthCache() {
+    // Expression
+    short arr = KMArray.instance((short) 3);
+    KMByteBlob.exp();
+    KMInteger.exp();
+    KMArray.instance((short) 2);
+    KMByteBlob.exp();
+    KMInteger.exp();
+    //==========================
+    byte[] cborArray = new byte[] {(byte)0x83, 0x43, 0x01, 0x02, 0x03, 0x19, 0x0a, 0x76,
+        (byte)0x82, 0x43, 0x01, 0x02, 0x03, 0x19, 0x0a, 0x76};
+    short ptr = repository.alloc((short)cborArray.length);
+    Util.arrayCopyNonAtomic(cborArray, (short) 0, repository.getHeap(), ptr, (short) cborArray.length);
+    decoder.setOptions(KMDecoder.OPT_CACHE_LENGTHS);
+    ptr = decoder.decode(arr, repository.getHeap(), ptr, (short) cborArray.length);
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    Assert.assertEquals(cborArray.length, repository.getCachedLength(ptr));
+    Assert.assertEquals(cborArray.length - 1, KMArray.cast(ptr).contentLength());
+    // Measured without the memo, which is filled only while it is enabled.
+    repository.clearSideTables();
+    Assert.assertEquals(KMType.INVALID_VALUE, repository.getCachedLength(ptr));
+    Assert.assertEquals(cborArray.length - 1, KMArray.cast(ptr).contentLength());
+    Assert.assertEquals(KMType.INVALID_VALUE, repository.getCachedLength(ptr));
+    decoder.setOptions(KMDecoder.OPT_CACHE_LENGTHS);
+    Assert.assertEquals(cborArray.length - 1, KMArray.cast(ptr).contentLength());
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    Assert.assertEquals(cborArray.length, repository.getCachedLength(ptr));
+    short nested = KMArray.cast(ptr).get((short) 2);
+    Assert.assertEquals(7, KMArray.cast(nested).contentLength());
+  }
+
   public void printArrayItems(short ptr) {
     System.out.println("[");
     short length = KMArray.cast(ptr).length();
@@ -242,7 +986,6 @@ public class CborParserTest {
   public void testKeyParamters() {
     String keyParmStr = "A91A10000002011A300000031908001A500000C81A000100011A700001F7011A600003F0001A600003F11B0000E677D21FD8181A200000014202031A2000000541001A200000064101";
     byte[] keyParamsBuf = hexStringToByteArray(keyParmStr);
-    System.out.println(repository.getHeapIndex());
     short ptr = repository.alloc((short)keyParamsBuf.length);
     Util.arrayCopyNonAtomic(keyParamsBuf, (short) 0, repository.getHeap(), ptr, (short) keyParamsBuf.length);
     ptr = decoder.decode(KMKeyParameters.expAny(), repository.getHeap(), ptr, (short) keyParamsBuf.length);
@@ -263,6 +1006,334 @@ public class CborParserTest {
     System.out.println(repository.getHeapIndex());
   }
 
+  @Test
+  public void testKeyCharacteristics() {
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    byte[] scratchpad = new byte[512];
+    byte[] val = new byte[] {0x00, 0x01, 0x02};
+    short osVersion = KMByteBlob.instance(val, (short) 0, (short) val.length);
+    short rootOfTrust = KMByteBlob.instance(val, (short) 0, (short) val.length);
+    short keyChars = KMKeyParameters.makeKeyCharacteristics(ptr, KMType.GENERATED, osVersion,
+        osVersion, osVersion, osVersion, rootOfTrust, scratchpad);
+    short sb = KMArray.cast(keyChars).get(KMKeyParameters.KEY_CHARS_SB_ENFORCED);
+    short tee = KMArray.cast(keyChars).get(KMKeyParameters.KEY_CHARS_TEE_ENFORCED);
+    short keystore = KMArray.cast(keyChars).get(KMKeyParameters.KEY_CHARS_KEYSTORE_ENFORCED);
+    short hidden = KMArray.cast(keyChars).get(KMKeyParameters.KEY_CHARS_HIDDEN);
+    // The maps must be the same as the ones built separately.
+    assertSameMap(KMKeyParameters.makeSbEnforced(ptr, KMType.GENERATED, osVersion, osVersion,
+        osVersion, osVersion, scratchpad), sb);
+    assertSameMap(KMKeyParameters.makeTeeEnforced(ptr, scratchpad), tee);
+    assertSameMap(KMKeyParameters.makeKeystoreEnforced(ptr, scratchpad), keystore);
+    assertSameMap(KMKeyParameters.makeHidden(ptr, rootOfTrust, scratchpad), hidden);
+    Assert.assertEquals(12, KMMap.cast(sb).length());
+    Assert.assertEquals(0, KMMap.cast(tee).length());
+    Assert.assertEquals(1, KMMap.cast(hidden).length());
+  }
+
+  private void assertSameMap(short expected, short actual) {
+    byte[] heap = repository.getHeap();
+    short length = (short) (KMMap.cast(expected).headerLength() + KMMap.cast(expected).contentLength());
+    Assert.assertEquals(length,
+        (short) (KMMap.cast(actual).headerLength() + KMMap.cast(actual).contentLength()));
+    Assert.assertEquals(0, Util.arrayCompare(heap, expected, heap, actual, length));
+  }
+
+  @Test
+  public void testChildIndex() {
+    decoder.setOptions(KMDecoder.OPT_INDEX_CHILDREN);
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    Assert.assertNotEquals(KMType.INVALID_VALUE, repository.getChildOffset(ptr, (short) 1));
+    short length = KMMap.cast(ptr).length();
+    short[] indexed = new short[(short) (length * 2)];
+    for (short i = 0; i < length; i++) {
+      indexed[(short) (i * 2)] = KMMap.cast(ptr).getKey(i);
+      indexed[(short) (i * 2 + 1)] = KMMap.cast(ptr).getKeyValue(i);
+    }
+    // Walking the encoding from the header must give the same offsets.
+    repository.clearSideTables();
+    for (short i = 0; i < length; i++) {
+      Assert.assertEquals(indexed[(short) (i * 2)], KMMap.cast(ptr).getKey(i));
+      Assert.assertEquals(indexed[(short) (i * 2 + 1)], KMMap.cast(ptr).getKeyValue(i));
+    }
+    printMapItems(ptr);
+  }
+
+  @Test
+  public void testTagIndex() {
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    short[] tags = {
+        KMType.ENUM_TAG, KMType.ALGORITHM,
+        KMType.UINT_TAG, KMType.KEYSIZE,
+        KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT,
+        KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED,
+        KMType.DATE_TAG, KMType.CERTIFICATE_NOT_BEFORE,
+        KMType.DATE_TAG, KMType.CERTIFICATE_NOT_AFTER,
+        KMType.ENUM_ARRAY_TAG, KMType.PURPOSE,
+        KMType.ENUM_ARRAY_TAG, KMType.DIGEST,
+        KMType.ENUM_ARRAY_TAG, KMType.PADDING,
+        // Absent tags
+        KMType.ENUM_TAG, KMType.ECCURVE,
+        KMType.UINT_TAG, KMType.ALGORITHM,
+        KMType.BYTES_TAG, KMType.APPLICATION_ID,
+    };
+    short[] expected = new short[(short) (tags.length / 2)];
+    for (short i = 0; i < tags.length; i += 2) {
+      expected[(short) (i / 2)] = KMKeyParameters.findTag(tags[i], tags[(short) (i + 1)], ptr);
+    }
+    KMKeyParameters.makeTagIndex(ptr);
+    for (short i = 0; i < tags.length; i += 2) {
+      Assert.assertEquals(expected[(short) (i / 2)],
+          KMKeyParameters.findTag(tags[i], tags[(short) (i + 1)], ptr));
+    }
+    Assert.assertNotEquals(KMType.INVALID_VALUE, expected[0]);
+    Assert.assertEquals(KMType.INVALID_VALUE, expected[(short) (expected.length - 1)]);
+  }
+
+  @Test
+  public void testTagPresence() {
+    decoder.setOptions(KMDecoder.OPT_TAG_PRESENCE);
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    Assert.assertNotEquals(KMType.INVALID_VALUE,
+        repository.getAttachment(ptr, KMRepository.TAG_PRESENCE));
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.ENUM_TAG, KMType.ALGORITHM));
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.UINT_TAG, KMType.KEYSIZE));
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED));
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.ENUM_ARRAY_TAG, KMType.PADDING));
+    Assert.assertFalse(KMTag.isPresent(ptr, KMType.ENUM_TAG, KMType.ECCURVE));
+    Assert.assertFalse(KMTag.isPresent(ptr, KMType.BYTES_TAG, KMType.APPLICATION_ID));
+    // Tag type mismatch
+    Assert.assertFalse(KMTag.isPresent(ptr, KMType.UINT_TAG, KMType.ALGORITHM));
+    KMTag.assertPresence(ptr, KMType.ULONG_TAG, KMType.RSA_PUBLIC_EXPONENT, (short) 1);
+    KMTag.assertAbsence(ptr, KMType.DATE_TAG, KMType.ACTIVE_DATETIME, (short) 1);
+  }
+
+  @Test
+  public void testAttachmentReuse() {
+    // Decoder hints neither fill the attachment table nor stop later attachments.
+    decoder.setOptions(KMDecoder.OPT_TAG_PRESENCE);
+    short ptr = KMType.INVALID_VALUE;
+    for (short i = 0; i < (short) (KMRepository.MAX_ATTACHMENTS + 4); i++) {
+      ptr = decodeKeyParams(KMKeyParameters.expAny());
+    }
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.ENUM_TAG, KMType.ALGORITHM));
+    Assert.assertNotEquals(KMType.INVALID_VALUE, KMKeyParameters.makeTagIndex(ptr));
+    Assert.assertNotEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, ptr));
+    // Decoding the same input again replaces its attachments.
+    short bitmap = repository.getAttachment(ptr, KMRepository.TAG_PRESENCE);
+    decoder.setOptions(KMDecoder.OPT_TAG_PRESENCE);
+    decoder.decode(KMKeyParameters.expAny(), repository.getHeap(), ptr,
+        (short) hexStringToByteArray(KEY_PARAMS).length);
+    decoder.setOptions(KMDecoder.OPT_NONE);
+    Assert.assertNotEquals(bitmap, repository.getAttachment(ptr, KMRepository.TAG_PRESENCE));
+  }
+
+  @Test
+  public void testTagIndexTableFull() {
+    // Fill the attachment table with child indexes, which are never evicted.
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    for (short i = 0; i < KMRepository.MAX_ATTACHMENTS; i++) {
+      repository.reserveChildIndex((short) (ptr + 1 + i), (short) 1);
+    }
+    short heapIndex = repository.getHeapIndex();
+    Assert.assertEquals(KMType.INVALID_VALUE, KMKeyParameters.makeTagIndex(ptr));
+    Assert.assertEquals(heapIndex, repository.getHeapIndex());
+    Assert.assertNotEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, ptr));
+  }
+
+  @Test
+  public void testCanonicalize() {
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    short length = KMMap.cast(ptr).length();
+    short[] values = new short[] {
+        KMType.ENUM_TAG, KMType.ALGORITHM, 0x01,
+        KMType.UINT_TAG, KMType.KEYSIZE, 0x0800,
+        KMType.BOOL_TAG, KMType.NO_AUTH_REQUIRED, 0x01,
+        KMType.DATE_TAG, KMType.CERTIFICATE_NOT_BEFORE, 0x00,
+    };
+    KMMap.cast(ptr).canonicalize();
+    Assert.assertTrue(KMMap.cast(ptr).isCanonical());
+    Assert.assertEquals(length, KMMap.cast(ptr).length());
+    // Keys are in increasing order.
+    short prevType = 0;
+    short prevKey = 0;
+    for (short i = 0; i < length; i++) {
+      short key = KMMap.cast(ptr).getKey(i);
+      short tagType = KMInteger.cast(key).getSignificantShort();
+      short tagKey = KMInteger.cast(key).getShort();
+      Assert.assertTrue(tagType > prevType || (tagType == prevType && tagKey > prevKey));
+      prevType = tagType;
+      prevKey = tagKey;
+    }
+    for (short i = 0; i < values.length; i += 3) {
+      short value = KMKeyParameters.findTag(values[i], values[(short) (i + 1)], ptr);
+      Assert.assertEquals(values[(short) (i + 2)], KMInteger.cast(value).getShort());
+    }
+    Assert.assertEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.ENUM_TAG, KMType.ECCURVE, ptr));
+    // Swapping entries keeps the encoding intact.
+    KMMap.cast(ptr).swap((short) 0, (short) (length - 1));
+    Assert.assertEquals(KMType.BOOL_TAG,
+        KMInteger.cast(KMMap.cast(ptr).getKey((short) 0)).getSignificantShort());
+    Assert.assertEquals(KMType.ENUM_TAG,
+        KMInteger.cast(KMMap.cast(ptr).getKey((short) (length - 1))).getSignificantShort());
+    Assert.assertEquals(KMType.ENUM_ARRAY_TAG,
+        KMInteger.cast(KMMap.cast(ptr).getKey((short) 1)).getSignificantShort());
+    printMapItems(ptr);
+  }
+
+  @Test
+  public void testSideTablesOfOtherItemsKept() {
+    short first = decodeKeyParams(KMKeyParameters.expAny());
+    short index = KMKeyParameters.makeTagIndex(first);
+    short second = decodeKeyParams(KMKeyParameters.expAny());
+    // Rewriting the second map leaves the tag index of the first one in place.
+    KMMap.cast(second).swap((short) 0, (short) 1);
+    Assert.assertEquals(index, repository.getAttachment(first, KMRepository.TAG_INDEX));
+    KMMap.cast(second).canonicalize();
+    Assert.assertEquals(index, repository.getAttachment(first, KMRepository.TAG_INDEX));
+    Assert.assertTrue(KMMap.cast(second).isCanonical());
+    // Rewriting the first map drops its own tag index only.
+    KMMap.cast(first).swap((short) 0, (short) 1);
+    Assert.assertEquals(KMType.INVALID_VALUE,
+        repository.getAttachment(first, KMRepository.TAG_INDEX));
+    Assert.assertTrue(KMMap.cast(second).isCanonical());
+    Assert.assertNotEquals(KMType.INVALID_VALUE,
+        KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, second));
+  }
+
+  @Test
+  public void testCursor() {
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    short index = 0;
+    short cursor = KMCursor.open(ptr);
+    while (KMCursor.hasMore(cursor)) {
+      Assert.assertEquals(KMMap.cast(ptr).getKey(index), KMCursor.get(cursor));
+      Assert.assertEquals(KMMap.cast(ptr).getKeyValue(index), KMCursor.value(cursor));
+      KMCursor.advance(cursor);
+      index++;
+    }
+    KMCursor.close(cursor);
+    Assert.assertEquals(KMMap.cast(ptr).length(), index);
+    Assert.assertFalse(KMKeyParameters.hasUnsupportedTags(ptr));
+    short purpose = KMKeyParameters.findTag(KMType.ENUM_ARRAY_TAG, KMType.PURPOSE, ptr);
+    Assert.assertEquals(2, KMByteBlob.cast(purpose).length());
+    // Array cursor
+    short arr = KMArray.instance((short) 2);
+    KMInteger.uint_8((byte) 1);
+    KMByteBlob.instance(new byte[] {0x01}, (short) 0, (short) 1);
+    cursor = KMCursor.open(arr);
+    Assert.assertEquals(KMArray.cast(arr).get((short) 0), KMCursor.get(cursor));
+    KMCursor.advance(cursor);
+    Assert.assertEquals(KMArray.cast(arr).get((short) 1), KMCursor.get(cursor));
+    KMCursor.advance(cursor);
+    Assert.assertFalse(KMCursor.hasMore(cursor));
+    KMCursor.close(cursor);
+  }
+
+  @Test
+  public void testCursorNonIntegerKey() {
+    // {h'01': 2}
+    byte[] buf = hexStringToByteArray("A1410102");
+    short ptr = repository.alloc((short) buf.length);
+    Util.arrayCopyNonAtomic(buf, (short) 0, repository.getHeap(), ptr, (short) buf.length);
+    short[] tags = {KMType.UINT_TAG, KMType.KEYSIZE};
+    short[] values = new short[1];
+    // No lookup holds a cursor, so failures never exhaust them.
+    for (short i = 0; i < (short) (KMCursor.MAX_CURSORS + 1); i++) {
+      Assert.assertEquals(KMType.INVALID_VALUE,
+          KMKeyParameters.findTag(KMType.UINT_TAG, KMType.KEYSIZE, ptr));
+      Assert.assertEquals(0, KMKeyParameters.findTags(tags, ptr, values));
+      Assert.assertTrue(KMKeyParameters.hasUnsupportedTags(ptr));
+      try {
+        KMKeyParameters.makeKeyParameters(KMKeyParameters.TEE_ENFORCED, ptr, new byte[16]);
+        Assert.fail();
+      } catch (KMException e) {
+        Assert.assertEquals(KMError.INVALID_KEY_BLOB, KMException.reason());
+      }
+    }
+
+    // {KEYSIZE: "a", 0x1C}, where the text string cannot be partitioned and 0x1C is malformed.
+    buf = hexStringToByteArray("A21A3000000361611C");
+    ptr = repository.alloc((short) buf.length);
+    Util.arrayCopyNonAtomic(buf, (short) 0, repository.getHeap(), ptr, (short) buf.length);
+    short blob = KMByteBlob.instance((short) 1);
+    for (short i = 0; i < (short) (KMCursor.MAX_CURSORS + 1); i++) {
+      try {
+        KMKeyParameters.makeKeyCharacteristics(ptr, KMType.GENERATED, blob, blob, blob, blob,
+            blob, new byte[64]);
+        Assert.fail();
+      } catch (ISOException e) {
+        Assert.assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, e.getReason());
+      }
+      try {
+        KMKeyParameters.findTag(KMType.ENUM_TAG, KMType.ALGORITHM, ptr);
+        Assert.fail();
+      } catch (ISOException e) {
+        Assert.assertEquals(ISO7816.SW_DATA_INVALID, e.getReason());
+      }
+    }
+    ptr = decodeKeyParams(KMKeyParameters.expAny());
+    Assert.assertTrue(KMTag.isPresent(ptr, KMType.ENUM_TAG, KMType.ALGORITHM));
+  }
+
+  @Test
+  public void testFindTags() {
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    short[] tags = {
+        KMType.ENUM_ARRAY_TAG, KMType.PADDING,
+        KMType.BYTES_TAG, KMType.APPLICATION_ID,
+        KMType.ENUM_TAG, KMType.ALGORITHM,
+        KMType.DATE_TAG, KMType.CERTIFICATE_NOT_AFTER,
+    };
+    short[] values = new short[(short) (tags.length / 2)];
+    Assert.assertEquals(3, KMKeyParameters.findTags(tags, ptr, values));
+    for (short i = 0; i < values.length; i++) {
+      Assert.assertEquals(
+          KMKeyParameters.findTag(tags[(short) (i * 2)], tags[(short) (i * 2 + 1)], ptr),
+          values[i]);
+    }
+    Assert.assertEquals(KMType.INVALID_VALUE, values[1]);
+    // Same result through the tag index.
+    KMKeyParameters.makeTagIndex(ptr);
+    short[] indexed = new short[values.length];
+    Assert.assertEquals(3, KMKeyParameters.findTags(tags, ptr, indexed));
+    Assert.assertArrayEquals(values, indexed);
+  }
+
+  @Test
+  public void testTagClasses() {
+    Assert.assertEquals(KMKeyParameters.SB_ENFORCED,
+        KMKeyParameters.getTagClass(KMType.ENUM_TAG, KMType.ALGORITHM));
+    Assert.assertEquals(KMKeyParameters.TEE_ENFORCED,
+        KMKeyParameters.getTagClass(KMType.UINT_TAG, KMType.AUTH_TIMEOUT));
+    Assert.assertEquals(KMKeyParameters.KEYSTORE_ENFORCED,
+        KMKeyParameters.getTagClass(KMType.DATE_TAG, KMType.CREATION_DATETIME));
+    Assert.assertEquals(KMKeyParameters.INVALID,
+        KMKeyParameters.getTagClass(KMType.BYTES_TAG, KMType.NONCE));
+    Assert.assertEquals(KMKeyParameters.UNSUPPORTED,
+        KMKeyParameters.getTagClass(KMType.UINT_TAG, KMType.MIN_SEC_BETWEEN_OPS));
+    Assert.assertEquals(KMKeyParameters.CUSTOM,
+        KMKeyParameters.getTagClass(KMType.ULONG_TAG, KMType.AUTH_TIMEOUT_MILLIS));
+    // Unknown tags and tags with a different tag type do not belong to any class.
+    Assert.assertEquals(0, KMKeyParameters.getTagClass(KMType.DATE_TAG, KMType.CERTIFICATE_NOT_AFTER));
+    Assert.assertEquals(0, KMKeyParameters.getTagClass(KMType.UINT_TAG, KMType.ALGORITHM));
+    Assert.assertFalse(KMKeyParameters.isValidTag(KMType.UINT_TAG, KMType.MAC_LENGTH));
+    Assert.assertTrue(KMKeyParameters.isValidTag(KMType.UINT_TAG, KMType.KEYSIZE));
+
+    short ptr = decodeKeyParams(KMKeyParameters.expAny());
+    byte[] scratchPad = new byte[64];
+    // ALGORITHM, KEYSIZE, RSA_PUBLIC_EXPONENT, NO_AUTH_REQUIRED, PURPOSE, DIGEST and PADDING.
+    Assert.assertEquals(7,
+        KMKeyParameters.makeKeyParameters(KMKeyParameters.SB_ENFORCED, ptr, scratchPad));
+    Assert.assertEquals(0,
+        KMKeyParameters.makeKeyParameters(KMKeyParameters.TEE_ENFORCED, ptr, scratchPad));
+  }
+
   private void printItems(short child) {
     switch (KMType.getMajorType(child)) {
       case KMType.MAJOR_TYPE_INT: